@@ -0,0 +1,504 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Uses the hardware timer to provide preemption, and to allow threads to sleep
+ * until a certain time.
+ *
+ * <p>
+ * Pending wake-ups are kept in a hierarchical timing wheel. Level <i>l</i>
+ * has 64 slots, each covering 64<sup><i>l</i></sup> ticks, and a wake-up is
+ * filed at the highest level where its deadline differs from the time the
+ * wheel has reached. As time passes, a slot that comes due at a higher level
+ * is cascaded into the lower ones, and a slot that comes due at level 0 is
+ * expired. Adding or cancelling a wake-up is O(1); each wake-up is moved at
+ * most once per level, and a bitmap of the occupied slots of every level
+ * lets the timer interrupt jump straight to the next slot that is due, so its
+ * cost does not grow with the number of sleeping threads.
+ *
+ * <p>
+ * The start of the next slot that is due is cached, so a timer interrupt
+ * with nothing due costs a single comparison, and the timeouts used by
+ * <tt>waitUntil()</tt> are recycled rather than allocated per call.
+ */
+public class Alarm {
+    /**
+     * Allocate a new Alarm. Set the machine's timer interrupt handler to this
+     * alarm's callback.
+     *
+     * <p><b>Note</b>: Nachos will not function correctly with more than one
+     * alarm.
+     */
+    public Alarm() {
+	reached = Machine.timer().getTime();
+
+	Machine.timer().setInterruptHandler(new Runnable() {
+		public void run() { timerInterrupt(); }
+	    });
+    }
+
+    /**
+     * The timer interrupt handler. This is called by the machine's timer
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose time has come, runs every due action, then causes the current
+     * thread to yield, forcing a context switch if there is another thread
+     * that should be run.
+     */
+    public void timerInterrupt() {
+	boolean intStatus = Machine.interrupt().disable();
+	advance(Machine.timer().getTime());
+	Machine.interrupt().restore(intStatus);
+
+	KThread.yield();
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks,
+     * waking it up in the timer interrupt handler. The thread must be
+     * woken up (placed in the scheduler ready set) during the first timer
+     * interrupt where
+     *
+     * <p><blockquote>
+     * (current time) >= (WaitUntil called time)+(x)
+     * </blockquote>
+     *
+     * <p>
+     * Returns early if another thread calls <tt>cancel()</tt> on this one.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     *
+     * @see	nachos.machine.Timer#getTime()
+     */
+    public void waitUntil(long x) {
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Timeout timeout = sleepTimeout(Machine.timer().getTime() + x, thread);
+	thread.alarmTimeout = timeout;
+	add(timeout);
+
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake a thread that is sleeping in <tt>waitUntil()</tt> before its time
+     * is up.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread was sleeping in
+     *		<tt>waitUntil()</tt> and has been woken.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Timeout timeout = thread.alarmTimeout;
+	boolean cancelled = (timeout != null && timeout.cancel());
+
+	Machine.interrupt().restore(intStatus);
+	return cancelled;
+    }
+
+    /**
+     * Arrange for <i>action</i> to be run by the timer interrupt handler at
+     * the first timer interrupt at least <i>x</i> ticks from now. The action
+     * runs with interrupts disabled, so it must not block; it may wake
+     * threads. If <i>x</i> is not positive, the action is run at once.
+     *
+     * @param	x	the minimum number of clock ticks to wait.
+     * @param	action	the action to run.
+     * @return	a handle that can cancel the action.
+     */
+    public Timeout schedule(long x, Runnable action) {
+	return schedule(x, 0, action);
+    }
+
+    /**
+     * Arrange for <i>action</i> to be run like <tt>schedule(x, action)</tt>,
+     * and then again at the first timer interrupt at least <i>period</i>
+     * ticks after each run, until it is cancelled. The same timeout is
+     * re-armed each time, so a periodic action allocates nothing once it is
+     * scheduled.
+     *
+     * @param	x	the minimum number of clock ticks before the first
+     *			run.
+     * @param	period	the minimum number of clock ticks between runs, or
+     *			0 to run only once.
+     * @param	action	the action to run.
+     * @return	a handle that can cancel the action.
+     */
+    public Timeout schedule(long x, long period, Runnable action) {
+	Lib.assertTrue(action != null && period >= 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Timeout timeout = new Timeout(Machine.timer().getTime() + x, null, action);
+	timeout.period = period;
+	if (x <= 0)
+	    run(timeout);
+	else
+	    add(timeout);
+
+	Machine.interrupt().restore(intStatus);
+	return timeout;
+    }
+
+    /**
+     * A pending wake-up or action.
+     */
+    public class Timeout {
+	Timeout(long deadline, KThread thread, Runnable action) {
+	    this.deadline = deadline;
+	    this.thread = thread;
+	    this.action = action;
+	}
+
+	/**
+	 * Return the time at which this timeout is due.
+	 *
+	 * @return	the deadline, in ticks.
+	 */
+	public long getDeadline() {
+	    return deadline;
+	}
+
+	/**
+	 * Cancel this timeout, if it has not already happened. A thread
+	 * sleeping on it is woken at once; an action is not run. A periodic
+	 * action is not run again, even if it is cancelled while running.
+	 *
+	 * @return	<tt>true</tt> if the timeout was still pending, or was a
+	 *		periodic action that had not been cancelled yet.
+	 */
+	public boolean cancel() {
+	    boolean intStatus = Machine.interrupt().disable();
+
+	    boolean wasPending = (level >= 0) || (period > 0);
+	    period = 0;
+	    if (level >= 0) {
+		remove(this);
+		if (thread != null) {
+		    thread.alarmTimeout = null;
+		    thread.ready();
+		    recycle(this);
+		}
+	    }
+
+	    Machine.interrupt().restore(intStatus);
+	    return wasPending;
+	}
+
+	private long deadline;
+	private KThread thread;
+	private Runnable action;
+
+	/** The ticks between runs of a periodic action, or 0. */
+	private long period = 0;
+
+	/** Where this timeout is filed, or -1 if it is not pending. */
+	private int level = -1, slot;
+	private Timeout prev, next;
+    }
+
+    /**
+     * File a timeout in the wheel according to how far its deadline is from
+     * the time the wheel has reached.
+     */
+    private void add(Timeout timeout) {
+	Lib.assertTrue(timeout.deadline > reached);
+
+	int level = dueLevel(timeout.deadline);
+	int slot = slotIndex(timeout.deadline, level);
+
+	timeout.level = level;
+	timeout.slot = slot;
+	timeout.prev = null;
+	timeout.next = slots[level][slot];
+	if (timeout.next != null)
+	    timeout.next.prev = timeout;
+	slots[level][slot] = timeout;
+
+	occupied[level] |= 1L << slot;
+	pending++;
+
+	long start = timeout.deadline >>> (level * slotBits) << (level * slotBits);
+	if (start < nextDueTime)
+	    nextDueTime = start;
+    }
+
+    private void remove(Timeout timeout) {
+	int level = timeout.level, slot = timeout.slot;
+
+	if (timeout.prev == null)
+	    slots[level][slot] = timeout.next;
+	else
+	    timeout.prev.next = timeout.next;
+	if (timeout.next != null)
+	    timeout.next.prev = timeout.prev;
+
+	if (slots[level][slot] == null)
+	    occupied[level] &= ~(1L << slot);
+
+	timeout.level = -1;
+	timeout.prev = timeout.next = null;
+	pending--;
+    }
+
+    /**
+     * Move the wheel forward to <i>time</i>, cascading and expiring every
+     * slot that comes due on the way.
+     */
+    private void advance(long time) {
+	// a removed timeout can leave the cache early, but never late
+	if (time < nextDueTime) {
+	    if (time > reached)
+		reached = time;
+	    return;
+	}
+
+	long due;
+
+	while (pending > 0 && (due = nextDue()) >= 0 && due <= time) {
+	    reached = due;
+
+	    // slots of several levels can start at the same time; cascade the
+	    // higher ones first, since they may refile into the lower ones
+	    for (int level=levels-1; level>=0; level--) {
+		if ((due & ((1L << (level * slotBits)) - 1)) != 0)
+		    continue;
+
+		int slot = slotIndex(due, level);
+		if ((occupied[level] & (1L << slot)) == 0)
+		    continue;
+
+		// take the whole slot first, since refiling adds to the wheel
+		Timeout list = slots[level][slot];
+		slots[level][slot] = null;
+		occupied[level] &= ~(1L << slot);
+
+		while (list != null) {
+		    Timeout timeout = list;
+		    list = list.next;
+		    timeout.level = -1;
+		    timeout.prev = timeout.next = null;
+		    pending--;
+
+		    if (timeout.deadline <= reached)
+			expire(timeout);
+		    else
+			add(timeout);
+		}
+	    }
+	}
+
+	if (time > reached)
+	    reached = time;
+
+	due = (pending > 0) ? nextDue() : -1;
+	nextDueTime = (due < 0) ? Long.MAX_VALUE : due;
+    }
+
+    private void expire(Timeout timeout) {
+	if (timeout.thread != null) {
+	    timeout.thread.alarmTimeout = null;
+	    timeout.thread.ready();
+	    recycle(timeout);
+	}
+	else {
+	    run(timeout);
+	}
+    }
+
+    /**
+     * Run a timeout's action, and re-arm it if it is periodic and was not
+     * cancelled by the action.
+     */
+    private void run(Timeout timeout) {
+	timeout.action.run();
+
+	if (timeout.period > 0 && timeout.level < 0) {
+	    timeout.deadline = Machine.timer().getTime() + timeout.period;
+	    add(timeout);
+	}
+    }
+
+    /**
+     * Return a timeout for a thread sleeping in <tt>waitUntil()</tt>, taking
+     * one from the free list if there is one.
+     */
+    private Timeout sleepTimeout(long deadline, KThread thread) {
+	Timeout timeout = free;
+	if (timeout == null)
+	    return new Timeout(deadline, thread, null);
+
+	free = timeout.next;
+	timeout.next = null;
+	timeout.deadline = deadline;
+	timeout.thread = thread;
+	return timeout;
+    }
+
+    /**
+     * Put a thread's timeout that is no longer pending on the free list. The
+     * handle never leaves the alarm, so nothing else can still refer to it.
+     */
+    private void recycle(Timeout timeout) {
+	timeout.thread = null;
+	timeout.next = free;
+	free = timeout;
+    }
+
+    /**
+     * Return the time at which the next occupied slot starts, or -1 if the
+     * wheel is empty. Every occupied slot lies after the slot that
+     * <tt>reached</tt> falls in at its level, within the same span of the
+     * level above.
+     */
+    private long nextDue() {
+	long due = -1;
+
+	for (int level=0; level<levels; level++) {
+	    int slot = nextSlot(level);
+	    if (slot < 0)
+		continue;
+
+	    int shift = level * slotBits;
+	    int spanShift = shift + slotBits;
+	    long span = (spanShift >= 64) ? 0
+		: reached >>> spanShift << spanShift;
+	    long start = span + ((long) slot << shift);
+
+	    if (due < 0 || start < due)
+		due = start;
+	}
+	return due;
+    }
+
+    /**
+     * Return the first occupied slot of a level after the one
+     * <tt>reached</tt> falls in, or -1 if there is none.
+     */
+    private int nextSlot(int level) {
+	int current = slotIndex(reached, level);
+	if (current == slotsPerLevel - 1)
+	    return -1;
+
+	long later = occupied[level] & (-1L << (current + 1));
+	return (later == 0) ? -1 : Long.numberOfTrailingZeros(later);
+    }
+
+    /**
+     * Return the level a time is filed at: the highest group of bits in
+     * which it differs from <tt>reached</tt>.
+     */
+    private int dueLevel(long time) {
+	return (63 - Long.numberOfLeadingZeros(time ^ reached)) / slotBits;
+    }
+
+    private static int slotIndex(long time, int level) {
+	return (int) (time >>> (level * slotBits)) & (slotsPerLevel - 1);
+    }
+
+    /**
+     * Tests whether the kernel's alarm is working: actions with deadlines
+     * given out of order and spread across several levels of the wheel run
+     * in deadline order and never early, cancelling works before but not
+     * after a timeout fires, a periodic action repeats until cancelled, and
+     * <tt>waitUntil(0)</tt> returns at once.
+     */
+    public static void selfTest() {
+	final Alarm alarm = ThreadedKernel.alarm;
+	if (alarm == null)
+	    return;
+
+	// 1..64 stay in level 0, 65..4095 cascade from level 1, and 5000
+	// and 70000 from levels 2 and 3
+	final long[] delays = { 300, 70, 5000, 130, 1, 64, 65, 4100, 70000, 2 };
+	final long[] fired = new long[delays.length];
+	final int[] order = new int[delays.length];
+	final int[] count = new int[1];
+	Timeout[] timeouts = new Timeout[delays.length];
+
+	long start = Machine.timer().getTime();
+	for (int i=0; i<delays.length; i++) {
+	    final int which = i;
+	    timeouts[i] = alarm.schedule(delays[i], new Runnable() {
+		    public void run() {
+			fired[which] = Machine.timer().getTime();
+			order[count[0]++] = which;
+		    }
+		});
+	}
+
+	// cancelled before it is due, so it never runs
+	final boolean[] ranCancelled = new boolean[1];
+	Timeout cancelled = alarm.schedule(200, new Runnable() {
+		public void run() { ranCancelled[0] = true; }
+	    });
+	Lib.assertTrue(cancelled.cancel());
+	Lib.assertTrue(!cancelled.cancel());
+
+	final int[] ticks = new int[1];
+	Timeout periodic = alarm.schedule(100, 100, new Runnable() {
+		public void run() { ticks[0]++; }
+	    });
+
+	alarm.waitUntil(80000);
+
+	Lib.assertTrue(count[0] == delays.length && !ranCancelled[0]);
+	for (int i=0; i<delays.length; i++) {
+	    Lib.assertTrue(timeouts[i].getDeadline() - delays[i] >= start);
+	    Lib.assertTrue(fired[i] >= timeouts[i].getDeadline());
+	    if (i > 0)
+		Lib.assertTrue(timeouts[order[i-1]].getDeadline()
+			       <= timeouts[order[i]].getDeadline());
+
+	    // cancelling after it fired does nothing
+	    Lib.assertTrue(!timeouts[i].cancel());
+	}
+
+	// the periodic action ran repeatedly, and stops once cancelled
+	Lib.assertTrue(ticks[0] > 1);
+	Lib.assertTrue(periodic.cancel());
+	int seen = ticks[0];
+	alarm.waitUntil(2000);
+	Lib.assertTrue(ticks[0] == seen);
+
+	// a sleeping thread woken early by cancel()
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() { alarm.waitUntil(1000000); }
+	    }).setName("alarm sleeper");
+	long before = Machine.timer().getTime();
+	sleeper.fork();
+	KThread.yield();
+	Lib.assertTrue(alarm.cancel(sleeper));
+	sleeper.join();
+	Lib.assertTrue(Machine.timer().getTime() - before < 1000000);
+
+	before = Machine.timer().getTime();
+	alarm.waitUntil(0);
+	Lib.assertTrue(Machine.timer().getTime() == before);
+    }
+
+    private static final int slotBits = 6;
+    private static final int slotsPerLevel = 1 << slotBits;
+    private static final int levels = (64 + slotBits - 1) / slotBits;
+
+    private Timeout[][] slots = new Timeout[levels][slotsPerLevel];
+    private long[] occupied = new long[levels];
+    private int pending = 0;
+
+    /** No slot is due before this time. */
+    private long nextDueTime = Long.MAX_VALUE;
+
+    /** Thread timeouts that are ready for reuse, linked through next. */
+    private Timeout free = null;
+
+    /** The time up to which every due timeout has been expired. */
+    private long reached;
+}
@@ -0,0 +1,27 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that runs the scheduler and context switch benchmarks instead
+ * of the usual self tests.
+ *
+ * @see	nachos.threads.SchedulerBenchmark
+ * @see	nachos.threads.ContextSwitchBenchmark
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+    /**
+     * Allocate a new benchmark kernel.
+     */
+    public BenchmarkKernel() {
+	super();
+    }
+
+    /**
+     * Run the benchmarks.
+     */
+    public void selfTest() {
+	ContextSwitchBenchmark.selfTest();
+	SchedulerBenchmark.selfTest();
+    }
+}
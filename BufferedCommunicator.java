@@ -0,0 +1,228 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>buffered communicator</i> passes 32-bit words from speakers to
+ * listeners through a bounded buffer, so that neither side has to wait for
+ * the other unless the buffer is full or empty.
+ *
+ * <p>
+ * Unlike <tt>Communicator</tt>, which pairs every speaker with a listener,
+ * <tt>speak()</tt> returns as soon as its words are in the buffer, and
+ * <tt>listen()</tt> returns as soon as there is a word to take. Words are
+ * received in the order they were spoken. The batch forms move many words
+ * per call with one acquisition of the lock, and a waiting thread is only
+ * woken when there is room or data for it, so a pipeline pays for a context
+ * switch per buffer rather than per word.
+ *
+ * <p>
+ * The default capacity is read from the <tt>nachos.conf</tt> key
+ * <tt>BufferedCommunicator.capacity</tt>.
+ */
+public class BufferedCommunicator {
+    /**
+     * Allocate a new buffered communicator with the configured capacity.
+     */
+    public BufferedCommunicator() {
+	this(Config.getInteger("BufferedCommunicator.capacity", 64));
+    }
+
+    /**
+     * Allocate a new buffered communicator.
+     *
+     * @param	capacity	the most words the buffer holds.
+     */
+    public BufferedCommunicator(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	buffer = new int[capacity];
+    }
+
+    /**
+     * Put <i>word</i> in the buffer, waiting while the buffer is full.
+     *
+     * @param	word	the integer to transfer.
+     */
+    public void speak(int word) {
+	lock.acquire();
+
+	while (count == buffer.length) {
+	    waitingSpeakers++;
+	    notFull.sleep();
+	    waitingSpeakers--;
+	}
+
+	buffer[(head + count) % buffer.length] = word;
+	count++;
+
+	if (waitingListeners > 0)
+	    notEmpty.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Put every word of <i>words</i> in the buffer, in order. Returns once
+     * the last word is in the buffer, waiting whenever it is full.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Put <i>length</i> words from <i>words</i>, starting at
+     * <i>offset</i>, in the buffer, in order. If they do not all fit at
+     * once, words from other speakers may be interleaved with them.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first integer.
+     * @param	length	the number of integers.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0
+		       && offset + length <= words.length);
+
+	lock.acquire();
+
+	while (length > 0) {
+	    while (count == buffer.length) {
+		waitingSpeakers++;
+		notFull.sleep();
+		waitingSpeakers--;
+	    }
+
+	    int amount = Math.min(length, buffer.length - count);
+	    copyIn(words, offset, amount);
+	    offset += amount;
+	    length -= amount;
+
+	    if (waitingListeners > 0)
+		notEmpty.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Take the next word from the buffer, waiting while the buffer is
+     * empty.
+     *
+     * @return	the integer transferred.
+     */
+    public int listen() {
+	lock.acquire();
+
+	while (count == 0) {
+	    waitingListeners++;
+	    notEmpty.sleep();
+	    waitingListeners--;
+	}
+
+	int word = buffer[head];
+	head = (head + 1) % buffer.length;
+	count--;
+
+	if (waitingSpeakers > 0)
+	    notFull.wake();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Take as many words as are available, up to the length of
+     * <i>words</i>, waiting while the buffer is empty.
+     *
+     * @param	words	the array to receive the integers.
+     * @return	the number of integers transferred, at least one unless
+     *		<i>words</i> is empty.
+     */
+    public int listen(int[] words) {
+	return listen(words, 0, words.length);
+    }
+
+    /**
+     * Take as many words as are available, up to <i>length</i>, into
+     * <i>words</i> starting at <i>offset</i>, waiting while the buffer is
+     * empty.
+     *
+     * @param	words	the array to receive the integers.
+     * @param	offset	the index to store the first integer at.
+     * @param	length	the most integers to take.
+     * @return	the number of integers transferred, at least one unless
+     *		<i>length</i> is zero.
+     */
+    public int listen(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0
+		       && offset + length <= words.length);
+
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	while (count == 0) {
+	    waitingListeners++;
+	    notEmpty.sleep();
+	    waitingListeners--;
+	}
+
+	int amount = Math.min(length, count);
+	copyOut(words, offset, amount);
+
+	if (waitingSpeakers > 0)
+	    notFull.wakeAll();
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Return the most words the buffer can hold.
+     *
+     * @return	the capacity.
+     */
+    public int getCapacity() {
+	return buffer.length;
+    }
+
+    /**
+     * Copy words to the tail of the buffer, in at most two pieces. The
+     * caller checks that they fit.
+     */
+    private void copyIn(int[] words, int offset, int amount) {
+	int tail = (head + count) % buffer.length;
+	int first = Math.min(amount, buffer.length - tail);
+
+	System.arraycopy(words, offset, buffer, tail, first);
+	System.arraycopy(words, offset + first, buffer, 0, amount - first);
+	count += amount;
+    }
+
+    /**
+     * Copy words from the head of the buffer, in at most two pieces. The
+     * caller checks that there are enough.
+     */
+    private void copyOut(int[] words, int offset, int amount) {
+	int first = Math.min(amount, buffer.length - head);
+
+	System.arraycopy(buffer, head, words, offset, first);
+	System.arraycopy(buffer, 0, words, offset + first, amount - first);
+	head = (head + amount) % buffer.length;
+	count -= amount;
+    }
+
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+
+    private int waitingSpeakers = 0;
+    private int waitingListeners = 0;
+
+    private Lock lock = new Lock();
+    private Condition2 notFull = new Condition2(lock);
+    private Condition2 notEmpty = new Condition2(lock);
+}
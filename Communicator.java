@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>,
@@ -22,6 +24,8 @@ public class Communicator {
     private int messageSend; //what the speaker sends
     private int messageReceive; //what the listener receives
 
+    private LinkedList<Selector> selectors = new LinkedList<Selector>(); //selectors waiting on this communicator
+
     /**
      * Allocate a new communicator.
      */
@@ -48,6 +52,7 @@ public class Communicator {
     public void speak(int word) {
         lock.acquire();
         speaker++;
+        notifySelectors(); //a listener now would not block
 
         while(listener == 0 || sent){
             speakerSend.sleep(); //puts current speaker to sleep if there are no more listeners
@@ -86,4 +91,46 @@ public class Communicator {
         return messageReceive;
 
     }
+
+    /**
+     * Return <tt>true</tt> if a speaker is waiting, so that a call to
+     * <tt>listen()</tt> would not block unless another listener takes that
+     * speaker first. Interrupts must be disabled.
+     *
+     * @return  <tt>true</tt> if a speaker is waiting.
+     */
+    boolean hasSpeaker() {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        return speaker > 0;
+    }
+
+    /**
+     * Ask to be told when a speaker arrives. Interrupts must be disabled.
+     *
+     * @param   selector    the selector to notify.
+     */
+    void addSelector(Selector selector) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        selectors.add(selector);
+    }
+
+    /**
+     * Stop telling the selector about speakers. Interrupts must be disabled.
+     *
+     * @param   selector    the selector to forget.
+     */
+    void removeSelector(Selector selector) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+        selectors.remove(selector);
+    }
+
+    private void notifySelectors() {
+        if (selectors.isEmpty())
+            return; //nothing to do, and no need to touch interrupts
+
+        boolean intStatus = Machine.interrupt().disable();
+        for (Selector selector : selectors)
+            selector.speakerArrived(this);
+        Machine.interrupt().restore(intStatus);
+    }
 }
@@ -1,5 +1,4 @@
 package nachos.threads;
-import java.util.LinkedList;
 import nachos.machine.*;
 
 /**
@@ -7,7 +6,9 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait on a queue from the kernel's scheduler, so they are
+ * woken in the order the scheduler chooses, highest priority first under a
+ * priority scheduler.
  *
  * @see	nachos.threads.Condition
  */
@@ -33,30 +34,30 @@ public class Condition2 {
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	conditionLock.release();
+
+	// join the queue before releasing the lock, so no wake can be missed
 	boolean intStatus = Machine.interrupt().disable();
-	waitQueue.add(KThread.currentThread());
+	waitQueue.waitForAccess(KThread.currentThread());
+	conditionLock.release();
 	KThread.sleep();
 	Machine.interrupt().restore(intStatus);
+
 	conditionLock.acquire();
     }
-    
+
     /**
      * Wake up at most one thread sleeping on this condition variable. The
      * current thread must hold the associated lock.
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	if (!waitQueue.isEmpty()){
-		boolean intStatus = Machine.interrupt().disable();
-		KThread thread = waitQueue.removeFirst();
-		if (thread != null){
-			thread.ready();
-		}
-		Machine.interrupt().restore(intStatus);
-	}
-    }
 
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+	Machine.interrupt().restore(intStatus);
+    }
 
     /**
      * Wake up all threads sleeping on this condition variable. The current
@@ -64,11 +65,15 @@ public class Condition2 {
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	while(!waitQueue.isEmpty()) {
-		wake();
-	}
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
@@ -0,0 +1,251 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * Measures what a <tt>KThread</tt> context switch costs, in wall-clock time
+ * and in simulated ticks, and how that cost divides between the steps of
+ * <tt>KThread.run()</tt>.
+ *
+ * <p>
+ * The workload is a ring of threads that do nothing but
+ * <tt>KThread.yield()</tt>, so every yield hands the processor to the next
+ * thread. It is run twice: once plain, to give the true cost per switch, and
+ * once with profiling on, which times each phase of the dispatch:
+ *
+ * <ol>
+ * <li><b>yield</b>: <tt>Machine.yield()</tt>.
+ * <li><b>save</b>: <tt>saveState()</tt> of the outgoing thread.
+ * <li><b>switch</b>: <tt>TCB.contextSwitch()</tt>, from the outgoing thread
+ * handing off until the incoming thread resumes.
+ * <li><b>restore</b>: <tt>restoreState()</tt> of the incoming thread.
+ * </ol>
+ *
+ * <p>
+ * The JIT keeps improving the dispatch path for a while, so both kinds of run
+ * are first repeated as a warm-up, and then alternated for several rounds;
+ * the median of each is reported, with the overhead of profiling. A switch
+ * hands off between two Java threads, so run-to-run noise is large; when the
+ * profiled median lies within the range of the plain rounds, the overhead is
+ * reported as below the noise rather than as a figure. Reading the
+ * clock perturbs the phases a little, so the breakdown is reported as a share
+ * of the profiled total alongside the plain figures.
+ * The first dispatch of a newly forked thread does not return through
+ * <tt>run()</tt> and is not counted.
+ *
+ * <p>
+ * The number of threads, of switches per run, of warm-up runs and of timed
+ * rounds are read from the <tt>nachos.conf</tt> keys
+ * <tt>ContextSwitchBenchmark.threads</tt>,
+ * <tt>ContextSwitchBenchmark.switches</tt>,
+ * <tt>ContextSwitchBenchmark.warmups</tt> and
+ * <tt>ContextSwitchBenchmark.rounds</tt>.
+ */
+public class ContextSwitchBenchmark {
+    private ContextSwitchBenchmark() {
+    }
+
+    /** <tt>Machine.yield()</tt>. */
+    static final int phaseYield = 0;
+    /** <tt>saveState()</tt>. */
+    static final int phaseSave = 1;
+    /** <tt>TCB.contextSwitch()</tt>. */
+    static final int phaseSwitch = 2;
+    /** <tt>restoreState()</tt>. */
+    static final int phaseRestore = 3;
+
+    private static final String[] phaseNames =
+	{ "yield", "save", "switch", "restore" };
+
+    /**
+     * <tt>true</tt> while a profiled run is in progress. Checked by
+     * <tt>KThread.run()</tt> before each phase.
+     */
+    static boolean profiling = false;
+
+    /**
+     * Called by <tt>KThread.run()</tt> as a dispatch starts.
+     */
+    static void begin() {
+	last = System.nanoTime();
+    }
+
+    /**
+     * Called by <tt>KThread.run()</tt> as each phase ends. Charges the time
+     * since the previous mark to the phase.
+     *
+     * @param	phase	the phase that just ended.
+     */
+    static void mark(int phase) {
+	long now = System.nanoTime();
+
+	phaseNanos[phase] += now - last;
+	last = now;
+
+	if (phase == phaseRestore)
+	    profiledSwitches++;
+    }
+
+    /**
+     * Run the ring workload.
+     *
+     * @param	n		the number of threads in the ring, including
+     *				the current thread.
+     * @param	switches	the total number of yields to perform. Only
+     *				those made while the current thread is in
+     *				its loop are timed.
+     * @param	profile		<tt>true</tt> to time each phase.
+     * @return	a report of the results.
+     */
+    public static String run(int n, int switches, boolean profile) {
+	Lib.assertTrue(n > 1 && switches > 0);
+
+	final int perThread = switches / n;
+	Runnable ring = new Runnable() {
+		public void run() {
+		    for (int i=0; i<perThread; i++) {
+			KThread.yield();
+			if (timing)
+			    timedYields++;
+		    }
+		}
+	    };
+
+	KThread[] threads = new KThread[n-1];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(ring).setName("ring thread #" + i);
+	    threads[i].fork();
+	}
+
+	// let every thread make its first dispatch before timing starts
+	KThread.yield();
+
+	for (int i=0; i<phaseNanos.length; i++)
+	    phaseNanos[i] = 0;
+	profiledSwitches = 0;
+	timedYields = 0;
+
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+	profiling = profile;
+	timing = true;
+
+	ring.run();
+
+	timing = false;
+	profiling = false;
+	long nanos = System.nanoTime() - startTime;
+	long ticks = Machine.timer().getTime() - startTicks;
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	long total = Math.max(1, timedYields);
+	lastNanosPerSwitch = (double) nanos / total;
+
+	StringBuilder report = new StringBuilder();
+	report.append(String.format("%-9s %3d threads %8d switches "
+				    + "%10.0f ns/switch %6.2f ticks/switch",
+				    profile ? "profiled" : "plain", n,
+				    total, (double) nanos / total,
+				    (double) ticks / total));
+
+	if (profile && profiledSwitches > 0) {
+	    long sum = 0;
+	    for (int i=0; i<phaseNanos.length; i++)
+		sum += phaseNanos[i];
+
+	    for (int i=0; i<phaseNanos.length; i++) {
+		report.append(String.format("%n    %-8s %10.0f ns/switch %5.1f%%",
+					    phaseNames[i],
+					    (double) phaseNanos[i] / profiledSwitches,
+					    100.0 * phaseNanos[i] / Math.max(1, sum)));
+	    }
+	}
+
+	return report.toString();
+    }
+
+    /**
+     * Run the workload with the configured sizes: plain and profiled runs
+     * alternately, first as a warm-up and then timed. Prints the median
+     * plain and profiled runs and the overhead of profiling.
+     */
+    public static void selfTest() {
+	int n = Config.getInteger("ContextSwitchBenchmark.threads", 2);
+	int switches = Config.getInteger("ContextSwitchBenchmark.switches", 20000);
+	int warmups = Config.getInteger("ContextSwitchBenchmark.warmups", 10);
+	int rounds = Config.getInteger("ContextSwitchBenchmark.rounds", 9);
+	Lib.assertTrue(warmups >= 0 && rounds > 0);
+
+	System.out.println("*** KThread context switches");
+
+	for (int i=0; i<warmups; i++) {
+	    run(n, switches, false);
+	    run(n, switches, true);
+	}
+
+	String[] plainReports = new String[rounds];
+	String[] profiledReports = new String[rounds];
+	double[] plain = new double[rounds];
+	double[] profiled = new double[rounds];
+
+	for (int i=0; i<rounds; i++) {
+	    plainReports[i] = run(n, switches, false);
+	    plain[i] = lastNanosPerSwitch;
+	    profiledReports[i] = run(n, switches, true);
+	    profiled[i] = lastNanosPerSwitch;
+	}
+
+	int plainMedian = median(plain);
+	int profiledMedian = median(profiled);
+
+	double fastest = plain[0], slowest = plain[0];
+	for (int i=1; i<rounds; i++) {
+	    fastest = Math.min(fastest, plain[i]);
+	    slowest = Math.max(slowest, plain[i]);
+	}
+
+	System.out.println(plainReports[plainMedian]);
+	System.out.println(profiledReports[profiledMedian]);
+
+	double overhead = profiled[profiledMedian];
+	if (overhead >= fastest && overhead <= slowest) {
+	    System.out.println(String.format("profiling overhead below noise: "
+					     + "plain runs %.0f to %.0f ns/switch "
+					     + "over %d rounds",
+					     fastest, slowest, rounds));
+	}
+	else {
+	    System.out.println(String.format("profiling overhead %.1f%% "
+					     + "(median of %d rounds)",
+					     100.0 * (overhead / plain[plainMedian] - 1),
+					     rounds));
+	}
+    }
+
+    /**
+     * Return the index of the median of <i>values</i>.
+     */
+    private static int median(double[] values) {
+	for (int i=0; i<values.length; i++) {
+	    int below = 0, equal = 0;
+	    for (int j=0; j<values.length; j++) {
+		if (values[j] < values[i])
+		    below++;
+		else if (values[j] == values[i])
+		    equal++;
+	    }
+	    if (below <= values.length / 2 && below + equal > values.length / 2)
+		return i;
+	}
+	return 0;
+    }
+
+    private static long[] phaseNanos = new long[phaseNames.length];
+    private static long last;
+    private static long profiledSwitches;
+    private static boolean timing = false;
+    private static long timedYields;
+    private static double lastNanosPerSwitch;
+}
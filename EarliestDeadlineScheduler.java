@@ -0,0 +1,580 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * A scheduler that always gives access to the waiting thread with the earliest
+ * deadline.
+ *
+ * <p>
+ * A thread becomes a real-time thread by registering a <i>period</i> and a
+ * <i>budget</i> with <tt>setRealTime()</tt>: it may use up to <i>budget</i>
+ * ticks of processor time in every <i>period</i> ticks. Registration is
+ * refused if it would raise the total utilization (the sum of budget / period
+ * over all real-time threads) above one, since beyond that point EDF cannot
+ * meet every deadline. Threads that are not real-time have no deadline; they
+ * run in FIFO order whenever no real-time thread is waiting.
+ *
+ * <p>
+ * Each real-time thread has an absolute deadline. A thread that wakes up after
+ * its deadline has passed starts a new job, with its deadline one period from
+ * now and a full budget. The running thread is charged for its processor time
+ * at every timer interrupt, through a periodic <tt>Alarm.schedule()</tt>, and
+ * again whenever it gives up the processor. A thread that exhausts its budget
+ * has its deadline postponed by one period and its budget refilled; the timer
+ * interrupt then yields, so an overrunning thread is rescheduled at once and
+ * cannot take time reserved for the others. A thread's reservation is
+ * released by <tt>clearRealTime()</tt>, or when the thread finishes.
+ *
+ * <p>
+ * Deadlines are inherited through queues that transfer priority, the same way
+ * a priority scheduler donates priority: a thread holding such a queue runs
+ * with the earliest deadline of any thread waiting on it, if that is earlier
+ * than its own.
+ */
+public class EarliestDeadlineScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EarliestDeadlineScheduler() {
+	}
+
+	/**
+	 * Allocate a new deadline-ordered thread queue.
+	 *
+	 * @param	transferPriority	<tt>true</tt> if this queue should
+	 *					pass the earliest waiting deadline to
+	 *					the owning thread.
+	 * @return	a new deadline thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(transferPriority);
+	}
+
+	/**
+	 * Make the specified thread a real-time thread, if the admission test
+	 * allows it. A thread that is already real-time is re-registered with
+	 * the new parameters, or keeps its old ones if they are refused.
+	 *
+	 * @param	thread	the thread to register.
+	 * @param	period	the length of each period, in ticks.
+	 * @param	budget	the processor time the thread may use in each
+	 *			period, in ticks.
+	 * @return	<tt>true</tt> if the thread was admitted.
+	 */
+	public boolean setRealTime(KThread thread, long period, long budget) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+		ThreadState ts = getThreadState(thread);
+		double newUtilization = utilization - ts.utilization()
+			+ (double) budget / period;
+
+		if (newUtilization > 1.0 + 1e-9)
+			return false;
+
+		utilization = newUtilization;
+		ts.period = period;
+		ts.budget = budget;
+		ts.startJob(Machine.timer().getTime());
+		return true;
+	}
+
+	/**
+	 * Return the specified thread to ordinary, deadline-free scheduling,
+	 * and release the share of the processor it reserved.
+	 *
+	 * @param	thread	the thread to unregister.
+	 */
+	public void clearRealTime(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState ts = getThreadState(thread);
+		utilization = Math.max(0.0, utilization - ts.utilization());
+		ts.period = 0;
+		ts.budget = 0;
+		ts.remaining = 0;
+		ts.setDeadline(noDeadline);
+	}
+
+	/**
+	 * Return the sum of budget / period over all admitted real-time threads.
+	 *
+	 * @return	the reserved fraction of the processor.
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	/**
+	 * Return the deadline the specified thread is currently scheduled by,
+	 * including any inherited deadline.
+	 *
+	 * @param	thread	the thread.
+	 * @return	the effective deadline, or <tt>noDeadline</tt>.
+	 */
+	public long getEffectiveDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getThreadState(thread).effectiveDeadline;
+	}
+
+	/**
+	 * The deadline of a thread that is not real-time.
+	 */
+	public static final long noDeadline = Long.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that orders threads by effective deadline, then
+	 * by arrival. Waiting threads are kept in an indexed min-heap, so a waiter
+	 * whose deadline changes is moved in O(log n).
+	 */
+	protected class DeadlineQueue extends ThreadQueue {
+		DeadlineQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState ts = getThreadState(thread);
+
+			// a real-time thread waking after its deadline starts a new job
+			if (isReadyQueue() && thread != KThread.currentThread()
+			    && ts.isRealTime()) {
+				long now = Machine.timer().getTime();
+				if (now >= ts.deadline)
+					ts.startJob(now);
+			}
+
+			Lib.assertTrue(!waitQ.containsKey(ts));
+			Waiter w = new Waiter(ts, ++enqueueOrder);
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+			w.index = size;
+			heap[size++] = w;
+			siftUp(w.index);
+			waitQ.put(ts, w);
+			ts.waiting.add(this);
+
+			headChanged();
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (isReadyQueue()) {
+				startTimer();
+				chargeCurrentThread();
+				releaseFinishedThread();
+			}
+
+			if (size == 0) {
+				release();
+				return null;
+			}
+
+			KThread thread = heap[0].state.thread;
+			acquire(thread);
+
+			if (isReadyQueue())
+				getThreadState(thread).dispatchedAt = Machine.timer().getTime();
+
+			return thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState ts = getThreadState(thread);
+			release();
+
+			Waiter w = waitQ.remove(ts);
+			if (w != null) {
+				removeAt(w.index);
+				ts.waiting.remove(this);
+				headChanged();
+			}
+
+			owner = ts;
+			if (transferPriority) {
+				ts.held.add(this);
+				ts.update();
+			}
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i] + " ");
+		}
+
+		public boolean contains(KThread thread) {
+			return waitQ.containsKey(getThreadState(thread));
+		}
+
+		public boolean empty() {
+			return size == 0;
+		}
+
+		/**
+		 * Return the earliest effective deadline of any waiting thread.
+		 */
+		long earliest() {
+			return (size == 0) ? noDeadline : heap[0].deadline;
+		}
+
+		/**
+		 * The effective deadline of a waiting thread has changed.
+		 */
+		void reposition(ThreadState ts) {
+			Waiter w = waitQ.get(ts);
+			Lib.assertTrue(w != null);
+
+			if (w.deadline == ts.effectiveDeadline)
+				return;
+
+			boolean earlier = ts.effectiveDeadline < w.deadline;
+			w.deadline = ts.effectiveDeadline;
+			if (earlier)
+				siftUp(w.index);
+			else
+				siftDown(w.index);
+
+			headChanged();
+		}
+
+		private void release() {
+			if (owner != null) {
+				if (owner.held.remove(this))
+					owner.update();
+				owner = null;
+			}
+		}
+
+		// pass a change in the earliest deadline on to the owner
+		private void headChanged() {
+			if (transferPriority && owner != null)
+				owner.update();
+		}
+
+		private boolean isReadyQueue() {
+			return this == KThread.readyQueue();
+		}
+
+		/**
+		 * Once the alarm exists, arrange for <tt>timerTick()</tt> to run at
+		 * every timer interrupt.
+		 */
+		private void startTimer() {
+			if (timerStarted || ThreadedKernel.alarm == null)
+				return;
+
+			timerStarted = true;
+			ThreadedKernel.alarm.schedule(1, 1, new Runnable() {
+				public void run() {
+					timerTick();
+				}
+			});
+		}
+
+		/**
+		 * Charge the running thread's budget for the time it has run so far,
+		 * without waiting for it to give up the processor. If the budget
+		 * runs out, its deadline is postponed, and the yield that ends the
+		 * timer interrupt lets a thread with an earlier deadline run.
+		 */
+		private void timerTick() {
+			ThreadState ts = getThreadState(KThread.currentThread());
+
+			if (ts.dispatchedAt < 0 || !ts.isRealTime())
+				return;
+
+			long now = Machine.timer().getTime();
+			ts.charge(now - ts.dispatchedAt);
+			ts.dispatchedAt = now;
+		}
+
+		/**
+		 * The current thread is about to give up the processor. Charge its
+		 * budget for the time it ran.
+		 */
+		private void chargeCurrentThread() {
+			ThreadState ts = getThreadState(KThread.currentThread());
+
+			if (ts.dispatchedAt < 0)
+				return;
+
+			long now = Machine.timer().getTime();
+			long used = now - ts.dispatchedAt;
+			ts.dispatchedAt = -1;
+
+			if (ts.isRealTime())
+				ts.charge(used);
+		}
+
+		/**
+		 * If the current thread has finished, it will never run again, so
+		 * give back the utilization it reserved.
+		 */
+		private void releaseFinishedThread() {
+			KThread thread = KThread.currentThread();
+
+			if (thread.isFinished() && getThreadState(thread).isRealTime())
+				clearRealTime(thread);
+		}
+
+		private void removeAt(int i) {
+			Waiter last = heap[--size];
+			heap[size] = null;
+
+			if (i == size)
+				return;
+
+			Waiter removed = heap[i];
+			last.index = i;
+			heap[i] = last;
+
+			if (last.compareTo(removed) < 0)
+				siftUp(i);
+			else
+				siftDown(i);
+		}
+
+		private void siftUp(int i) {
+			Waiter w = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (w.compareTo(heap[parent]) >= 0)
+					break;
+				heap[parent].index = i;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			w.index = i;
+			heap[i] = w;
+		}
+
+		private void siftDown(int i) {
+			Waiter w = heap[i];
+			int half = size >>> 1;
+
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+				if (right < size && heap[right].compareTo(heap[child]) < 0)
+					child = right;
+				if (w.compareTo(heap[child]) <= 0)
+					break;
+				heap[child].index = i;
+				heap[i] = heap[child];
+				i = child;
+			}
+			w.index = i;
+			heap[i] = w;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should pass the earliest waiting
+		 * deadline to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		private ThreadState owner = null;
+		private HashMap<ThreadState, Waiter> waitQ =
+			new HashMap<ThreadState, Waiter>();
+		private Waiter[] heap = new Waiter[initialCapacity];
+		private int size = 0;
+		private long enqueueOrder = 0;
+		private boolean timerStarted = false;
+	}
+
+	/**
+	 * A thread waiting on a <tt>DeadlineQueue</tt>, with the deadline it is
+	 * currently ordered by and its position in the heap.
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+		Waiter(ThreadState state, long order) {
+			this.state = state;
+			this.deadline = state.effectiveDeadline;
+			this.order = order;
+		}
+
+		public int compareTo(Waiter other) {
+			if (deadline != other.deadline)
+				return (deadline < other.deadline) ? -1 : 1;
+
+			return Long.compare(order, other.order);
+		}
+
+		public String toString() {
+			return state.thread.toString();
+		}
+
+		ThreadState state;
+		long deadline;
+		long order;
+		int index;
+	}
+
+	/**
+	 * The scheduling state of a thread: its real-time parameters, its own
+	 * and effective deadlines, and the queues it holds and waits on.
+	 *
+	 * @see	nachos.threads.KThread#schedulingState
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with
+		 * the specified thread.
+		 *
+		 * @param	thread	the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		boolean isRealTime() {
+			return period > 0;
+		}
+
+		double utilization() {
+			return isRealTime() ? (double) budget / period : 0.0;
+		}
+
+		/**
+		 * Release a new job at the specified time: the deadline moves to one
+		 * period from now and the budget is refilled.
+		 */
+		void startJob(long now) {
+			remaining = budget;
+			setDeadline(now + period);
+		}
+
+		/**
+		 * Charge processor time against the budget. Each time the budget
+		 * runs out, the deadline is postponed by a period and the budget is
+		 * refilled, carrying the overrun.
+		 */
+		void charge(long used) {
+			remaining -= used;
+
+			if (remaining > 0)
+				return;
+
+			long newDeadline = deadline;
+			while (remaining <= 0) {
+				remaining += budget;
+				newDeadline += period;
+			}
+			setDeadline(newDeadline);
+		}
+
+		void setDeadline(long deadline) {
+			this.deadline = deadline;
+			update();
+		}
+
+		/**
+		 * Recompute the effective deadline, and if it changed, reposition
+		 * this thread in every queue it is waiting on.
+		 */
+		void update() {
+			long newDeadline = deadline;
+
+			for (Iterator<DeadlineQueue> i = held.iterator(); i.hasNext(); )
+				newDeadline = Math.min(newDeadline, i.next().earliest());
+
+			if (newDeadline == effectiveDeadline)
+				return;
+
+			effectiveDeadline = newDeadline;
+
+			for (Iterator<DeadlineQueue> i = waiting.iterator(); i.hasNext(); )
+				i.next().reposition(this);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The real-time parameters; a period of 0 means not real-time. */
+		protected long period = 0;
+		protected long budget = 0;
+		protected long remaining = 0;
+
+		/** This thread's own deadline, and the one it is scheduled by. */
+		protected long deadline = noDeadline;
+		protected long effectiveDeadline = noDeadline;
+
+		/** When this thread was last dispatched, or -1 if not running. */
+		protected long dispatchedAt = -1;
+
+		/** Transferring queues this thread holds, and queues it waits on. */
+		protected HashSet<DeadlineQueue> held = new HashSet<DeadlineQueue>();
+		protected HashSet<DeadlineQueue> waiting = new HashSet<DeadlineQueue>();
+	}
+
+	/**
+	 * Test that the utilization of finished real-time threads is released,
+	 * by admitting, running to completion and re-admitting more threads than
+	 * could be admitted at once. Does nothing unless this is the kernel's
+	 * scheduler.
+	 */
+	public static void selfTest() {
+		if (!(ThreadedKernel.scheduler instanceof EarliestDeadlineScheduler))
+			return;
+
+		EarliestDeadlineScheduler scheduler =
+			(EarliestDeadlineScheduler) ThreadedKernel.scheduler;
+
+		boolean intStatus = Machine.interrupt().disable();
+		double reserved = scheduler.getUtilization();
+		Machine.interrupt().restore(intStatus);
+
+		// each thread reserves half of what is left, so at most two could be
+		// admitted together
+		long period = 1000;
+		long budget = Math.max(1, (long) ((1.0 - reserved) * period / 2));
+
+		for (int i = 0; i < 8; i++) {
+			KThread thread = new KThread(new Runnable() {
+				public void run() {
+				}
+			}).setName("edf admission " + i);
+
+			intStatus = Machine.interrupt().disable();
+			Lib.assertTrue(scheduler.setRealTime(thread, period, budget));
+			Machine.interrupt().restore(intStatus);
+
+			thread.fork();
+			thread.join();
+		}
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(Math.abs(scheduler.getUtilization() - reserved) < 1e-9);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private double utilization = 0.0;
+
+	private static final int initialCapacity = 8;
+}
@@ -40,13 +40,12 @@ public class KThread {
     
     /**
      * Allocate a new <tt>KThread</tt>. If this is the first <tt>KThread</tt>,
-     * create an idle thread as well.
+     * create an idle thread as well. The thread's <tt>TCB</tt> is not
+     * allocated until it is forked, so threads that are never forked cost
+     * only this object.
      */
     public KThread() {
-	if (currentThread != null) {
-	    tcb = new TCB();
-	}	    
-	else {
+	if (currentThread == null) {
 	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
@@ -104,6 +103,58 @@ public class KThread {
 	return name;
     }
 
+    /**
+     * Set the processors this thread may run on, as a mask with bit <i>i</i>
+     * set if it may run on processor <i>i</i>. Only schedulers that simulate
+     * several processors look at it, and a change takes effect the next time
+     * the thread becomes ready.
+     *
+     * @param	mask	the affinity mask. It must name at least one
+     *			processor the scheduler has; the scheduler checks
+     *			this when the thread becomes ready.
+     * @return	this thread.
+     *
+     * @see	nachos.threads.WorkStealingScheduler
+     */
+    public KThread setAffinity(long mask) {
+	Lib.assertTrue(mask != 0, "empty affinity mask");
+
+	affinity = mask;
+	return this;
+    }
+
+    /**
+     * Get the affinity mask of this thread.
+     *
+     * @return	the mask of processors this thread may run on.
+     */
+    public long getAffinity() {
+	return affinity;
+    }
+
+    /**
+     * Set the processor this thread should be placed on whenever its
+     * affinity mask allows. This is only a hint.
+     *
+     * @param	processor	the preferred processor, or -1 for none.
+     * @return	this thread.
+     */
+    public KThread setPreferredProcessor(int processor) {
+	Lib.assertTrue(processor >= -1);
+
+	preferredProcessor = processor;
+	return this;
+    }
+
+    /**
+     * Get the preferred processor of this thread.
+     *
+     * @return	the preferred processor, or -1 if there is none.
+     */
+    public int getPreferredProcessor() {
+	return preferredProcessor;
+    }
+
     /**
      * Get the full name of this thread. This includes its name along with its
      * numerical ID. This name is used for debugging purposes only.
@@ -139,11 +190,13 @@ public class KThread {
 	Lib.assertTrue(status == statusNew);
 	Lib.assertTrue(target != null);
 	
-	Lib.debug(dbgThread,
-		  "Forking thread: " + toString() + " Runnable: " + target);
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread,
+		      "Forking thread: " + toString() + " Runnable: " + target);
 
 	boolean intStatus = Machine.interrupt().disable();
 
+	tcb = new TCB();
 	tcb.start(new Runnable() {
 		public void run() {
 		    runThread();
@@ -162,7 +215,8 @@ public class KThread {
     }
 
     private void begin() {
-	Lib.debug(dbgThread, "Beginning thread: " + toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Beginning thread: " + toString());
 	
 	Lib.assertTrue(this == currentThread);
 
@@ -182,7 +236,8 @@ public class KThread {
      * delete this thread.
      */
     public static void finish() {
-	Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Finishing thread: " + currentThread.toString());
 	
 	Machine.interrupt().disable();
 
@@ -191,8 +246,15 @@ public class KThread {
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
-
 	currentThread.status = statusFinished;
+
+	// wake every joiner; the last nextThread() releases the join queue
+	if (currentThread.joinQueue != null) {
+	    KThread joiner;
+	    while ((joiner = currentThread.joinQueue.nextThread()) != null)
+		joiner.ready();
+	    currentThread.joinQueue = null;
+	}
 	
 	sleep();
     }
@@ -214,7 +276,8 @@ public class KThread {
      * called with interrupts disabled.
      */
     public static void yield() {
-	Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Yielding thread: " + currentThread.toString());
 	
 	Lib.assertTrue(currentThread.status == statusRunning);
 	
@@ -239,7 +302,8 @@ public class KThread {
      * scheduled this thread to be destroyed by the next thread to run.
      */
     public static void sleep() {
-	Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Sleeping thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
@@ -254,45 +318,47 @@ public class KThread {
      * ready queue.
      */
     public void ready() {
-	Lib.debug(dbgThread, "Ready thread: " + toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Ready thread: " + toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
+	    if (SchedulerTrace.enabled)
+		SchedulerTrace.ready(this);
 	    readyQueue.waitForAccess(this);
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
 
     /**
      * Waits for this thread to finish. If this thread is already finished,
-     * return immediately. This method must only be called once; the second
-     * call is not guaranteed to return. This thread must not be the current
-     * thread.
+     * return immediately. Any number of threads may join the same thread;
+     * they sleep on this thread's join queue, which donates their priority
+     * to this thread, and are all woken when it finishes. This thread must
+     * not be the current thread.
      */
     public void join() {
-	Lib.debug(dbgThread, "Joining to thread: " + toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 	Lib.assertTrue(this != currentThread);
-	//disables the interrupts to ensure the code executes with out error
-	boolean curStatus =Machine.interrupt().disable();
-	if(this.status != statusFinished) {
-		//the following section is to enable priority donation
-		ThreadQueue waitQ = ThreadedKernel.scheduler.newThreadQueue(true);
-		//allows the current thread (THIS) to access resources of waitQ
-		waitQ.acquire(this);
-		//waitQ.nextThread(); // get the next thread in q
-		//Here we assume that priority donation will occur as soon as possible as long as a thread is added to the queue
-		waitQ.waitForAccess(currentThread);
-		//ensures that the thread is not finish for correctness
-		while(this.status != statusFinished) 
-			KThread.yield();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (status != statusFinished) {
+	    if (joinQueue == null) {
+		joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+		joinQueue.acquire(this);
+	    }
+	    joinQueue.waitForAccess(currentThread);
+	    sleep();
 	}
-	//re-enables the the interrupt
-	Machine.interrupt().restore(curStatus);
 
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -303,12 +369,25 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If the <tt>nachos.conf</tt> key <tt>KThread.tickless</tt> is set, the
+     * idle thread does not go through the scheduler for every tick while the
+     * ready queue is empty; see <tt>idle()</tt>.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
+
+	tickless = Config.getBoolean("KThread.tickless", false);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (tickless)
+			idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -317,6 +396,47 @@ public class KThread {
 	idleThread.fork();
     }
     
+    /**
+     * Let the clock run until some thread becomes ready. Each pass only
+     * enables interrupts, which advances the clock by one kernel tick and
+     * delivers whatever interrupt is due, so an idle period costs no
+     * scheduler calls or context switches until the timer interrupt (or a
+     * device) wakes a thread, and <tt>Alarm.timerInterrupt()</tt> switches
+     * to it.
+     */
+    private static void idle() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (readyQueue.empty()) {
+	    Machine.interrupt().enable();
+	    Machine.interrupt().disable();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether this thread has finished. When the current thread has, a
+     * scheduler choosing the next thread knows it will never run again.
+     *
+     * @return	<tt>true</tt> if this thread has called <tt>finish()</tt>.
+     */
+    boolean isFinished() {
+	return status == statusFinished;
+    }
+
+    /**
+     * Return the queue of threads waiting to run on the processor. Lets a
+     * scheduler tell its ready queue apart from its other queues.
+     *
+     * @return	the ready queue.
+     */
+    static ThreadQueue readyQueue() {
+	return readyQueue;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
@@ -352,18 +472,37 @@ public class KThread {
     private void run() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 
+	if (SchedulerTrace.enabled)
+	    SchedulerTrace.running(this);
+
+	if (ContextSwitchBenchmark.profiling)
+	    ContextSwitchBenchmark.begin();
+
 	Machine.yield();
 
+	if (ContextSwitchBenchmark.profiling)
+	    ContextSwitchBenchmark.mark(ContextSwitchBenchmark.phaseYield);
+
 	currentThread.saveState();
 
-	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
-		  + " to: " + toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
+		      + " to: " + toString());
+
+	if (ContextSwitchBenchmark.profiling)
+	    ContextSwitchBenchmark.mark(ContextSwitchBenchmark.phaseSave);
 
 	currentThread = this;
 
 	tcb.contextSwitch();
 
+	if (ContextSwitchBenchmark.profiling)
+	    ContextSwitchBenchmark.mark(ContextSwitchBenchmark.phaseSwitch);
+
 	currentThread.restoreState();
+
+	if (ContextSwitchBenchmark.profiling)
+	    ContextSwitchBenchmark.mark(ContextSwitchBenchmark.phaseRestore);
     }
 
     /**
@@ -371,7 +510,8 @@ public class KThread {
      * <tt>statusRunning</tt> and check <tt>toBeDestroyed</tt>.
      */
     protected void restoreState() {
-	Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Running thread: " + currentThread.toString());
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
@@ -417,10 +557,15 @@ public class KThread {
      * Tests whether this module is working.
      */
     public static void selfTest() {
-	Lib.debug(dbgThread, "Enter KThread.selfTest");
+	if (Lib.test(dbgThread))
+	    Lib.debug(dbgThread, "Enter KThread.selfTest");
 	
 	new KThread(new PingTest(1)).setName("forked thread").fork();
 	new PingTest(0).run();
+
+	Alarm.selfTest();
+	StrideScheduler.selfTest();
+	EarliestDeadlineScheduler.selfTest();
     }
 
     private static final char dbgThread = 't';
@@ -432,6 +577,30 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * Additional state used by the scheduler trace, when it is enabled.
+     *
+     * @see	nachos.threads.SchedulerTrace
+     */
+    SchedulerTrace.ThreadStats traceStats = null;
+
+    /**
+     * The simulated processor this thread last ran on, or -1 if it has not
+     * run yet.
+     *
+     * @see	nachos.threads.WorkStealingScheduler
+     */
+    int processor = -1;
+
+    /**
+     * The wake-up of this thread while it sleeps in
+     * <tt>Alarm.waitUntil()</tt>, or <tt>null</tt>.
+     */
+    Alarm.Timeout alarmTimeout = null;
+
+    private long affinity = -1L;
+    private int preferredProcessor = -1;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -447,6 +616,8 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** Threads waiting in <tt>join()</tt> for this thread to finish. */
+    private ThreadQueue joinQueue = null;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -460,4 +631,5 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static boolean tickless = false;
 }
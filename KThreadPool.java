@@ -0,0 +1,152 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A fixed set of worker <tt>KThread</tt>s that run submitted
+ * <tt>Runnable</tt>s one after another.
+ *
+ * <p>
+ * Forking a <tt>KThread</tt> creates a new <tt>TCB</tt>, and with it a new
+ * Java thread, which is destroyed again when the thread finishes. For many
+ * short tasks that cost dominates the work. A pool starts a worker only when
+ * a task arrives and every existing worker is busy, and a worker that
+ * finishes a task goes on to the next one instead of finishing, so its
+ * <tt>TCB</tt> is reused for as long as the pool is open.
+ *
+ * <p>
+ * The number of workers defaults to the <tt>nachos.conf</tt> key
+ * <tt>KThreadPool.size</tt>.
+ */
+public class KThreadPool {
+    /**
+     * Allocate a new pool with the configured number of workers.
+     */
+    public KThreadPool() {
+	this(Config.getInteger("KThreadPool.size", 4));
+    }
+
+    /**
+     * Allocate a new pool.
+     *
+     * @param	size	the largest number of workers the pool will start.
+     */
+    public KThreadPool(int size) {
+	Lib.assertTrue(size > 0);
+
+	this.size = size;
+    }
+
+    /**
+     * Queue a task to be run by one of the workers. Returns without waiting
+     * for the task to start. The pool must not have been shut down.
+     *
+     * @param	task	the task to run.
+     */
+    public void execute(Runnable task) {
+	Lib.assertTrue(task != null);
+
+	lock.acquire();
+	Lib.assertTrue(!shutdown);
+
+	tasks.add(task);
+	pending++;
+
+	if (idle > 0) {
+	    idle--;
+	    taskReady.wake();
+	}
+	else if (workers.size() < size)
+	    startWorker();
+
+	lock.release();
+    }
+
+    /**
+     * Wait until every task passed to <tt>execute()</tt> so far has
+     * finished running.
+     */
+    public void awaitIdle() {
+	lock.acquire();
+
+	while (pending > 0)
+	    allDone.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Run the tasks still queued, then stop every worker and wait for them
+     * to finish. No more tasks may be queued afterwards.
+     */
+    public void shutdown() {
+	lock.acquire();
+	shutdown = true;
+	idle = 0;
+	taskReady.wakeAll();
+	lock.release();
+
+	while (!workers.isEmpty())
+	    workers.removeFirst().join();
+    }
+
+    /**
+     * Return the number of workers started so far.
+     *
+     * @return	the number of workers.
+     */
+    public int getWorkerCount() {
+	return workers.size();
+    }
+
+    private void startWorker() {
+	KThread worker = new KThread(new Runnable() {
+		public void run() {
+		    runWorker();
+		}
+	    });
+	worker.setName("pool worker #" + workers.size());
+	workers.add(worker);
+	worker.fork();
+    }
+
+    private void runWorker() {
+	while (true) {
+	    lock.acquire();
+
+	    while (tasks.isEmpty() && !shutdown) {
+		idle++;
+		taskReady.sleep();
+	    }
+
+	    if (tasks.isEmpty()) {
+		lock.release();
+		return;
+	    }
+
+	    Runnable task = tasks.removeFirst();
+	    lock.release();
+
+	    task.run();
+
+	    lock.acquire();
+	    if (--pending == 0)
+		allDone.wakeAll();
+	    lock.release();
+	}
+    }
+
+    private int size;
+
+    private Lock lock = new Lock();
+    private Condition taskReady = new Condition(lock);
+    private Condition allDone = new Condition(lock);
+
+    private LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private LinkedList<KThread> workers = new LinkedList<KThread>();
+    private int pending = 0;
+    private int idle = 0;
+    private boolean shutdown = false;
+}
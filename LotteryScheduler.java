@@ -2,18 +2,11 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.Random;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
-import nachos.threads.PriorityScheduler.PriorityQueue;
-import nachos.threads.PriorityScheduler.ThreadState;
-import nachos.threads.PriorityScheduler.ThreadWaiter;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -30,6 +23,12 @@ import nachos.threads.PriorityScheduler.ThreadWaiter;
  * ticket.
  *
  * <p>
+ * Ticket counts are kept as <tt>long</tt>s everywhere inside the scheduler
+ * (queue sums, donations and draws), so large donation chains stay exactly
+ * proportional. Only <tt>getEffectivePriority()</tt>, which must return an
+ * <tt>int</tt>, saturates at <tt>Integer.MAX_VALUE</tt>.
+ *
+ * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
@@ -40,7 +39,45 @@ public class LotteryScheduler extends PriorityScheduler {
      * Allocate a new lottery scheduler.
      */
 	public LotteryScheduler() {
+		random = new Random(Lib.random(Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * Reseed the random number generator used to hold lotteries, so that a
+	 * run can be reproduced.
+	 *
+	 * @param	seed	the new seed.
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+	
+	/**
+	 * Return the number of tickets the specified thread holds, including
+	 * any transferred to it.
+	 *
+	 * @param	thread	the thread whose tickets to return.
+	 * @return	the thread's effective tickets.
+	 */
+	public long getEffectiveTickets(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getThreadState(thread).getEffectiveTickets();
+	}
+	
+	// Draw a uniformly random ticket in [0, bound)
+	private long drawTicket(long bound) {
+		if (bound <= Integer.MAX_VALUE) {
+			return random.nextInt((int) bound);
+		}
+		
+		long bits, value;
+		do {
+			bits = random.nextLong() >>> 1;
+			value = bits % bound;
+		} while (bits - value + (bound - 1) < 0);
+		return value;
 	}
+
 	/**
 	 * Allocate a new lottery thread queue.
 	 *
@@ -114,70 +151,42 @@ public class LotteryScheduler extends PriorityScheduler {
 	
 	public static final int priorityMaximum = Integer.MAX_VALUE;
 	
-	protected class LotteryQueue extends ThreadQueue {
-		private java.util.HashMap<ThreadState, Integer> waitQ;
+	/**
+	 * A thread queue whose waiting threads hold tickets. Keeps the sum of
+	 * those tickets and, if it transfers tickets, passes every change in the
+	 * sum on to the thread that holds it. Subclasses decide how the waiting
+	 * threads are stored and which one receives access next.
+	 */
+	protected abstract class TicketQueue extends ThreadQueue {
 		boolean TPriority;
-		private ThreadState acquired;
-		private int sum;
-		boolean sumCh;
+		protected ThreadState acquired;
+		protected long sum;
 		
-		LotteryQueue(boolean transferPriority) {
-			waitQ = new java.util.HashMap<ThreadState, Integer>();
+		TicketQueue(boolean transferPriority) {
 			this.TPriority = transferPriority;
 			sum = 0;
-			sumCh = true;
-		}
-	
-		public void signal(ThreadState ts, int tickets) {
-			if (TPriority == true && acquired != null) {
-				if (acquired == ts) {
-					acquired.setEffectivePriority(tickets - sum);
-				} else {
-					acquired.effectivePriorityUpdated();
-				}
-			}
-		}
-	
-		public void updateWaitingThread(ThreadState ts, int tickets) {
-			if (waitQ.size() == 0) {
-				return;
-			}
-			
-			// update the value of a threadstate on the queue
-			waitQ.put(ts, new Integer(Math.min(tickets,  threadTickets(ts))));
-			
-			// flag the queue that its sum has changed and announce to others
-			sumCh = true;
-			signal(ts, tickets);
 		}
 		
-		public void dequeueWaitingThread(ThreadState ts) {
-			Lib.assertTrue(waitQ.containsKey(ts));
-			
-			// remove the thread from the lottery queue
-			Integer tickets = waitQ.remove(ts);
-			
-			// flag the queue that its sum has changed
-			sumCh = true;
-			signal(ts, tickets.intValue());
-		}
-		// DONE
+		public abstract void enqueueWaitingThread(ThreadState ts);
 		
-		public void enqueueWaitingThread(ThreadState ts) {
-			int tickets = threadTickets(ts);
-			Lib.assertTrue(!waitQ.containsKey(ts));
-			waitQ.put(ts, new Integer(tickets));
-			
-			// flag the queue that its sum has changed
-			sumCh = true;
-			signal(ts, tickets);
-		}
+		public abstract void dequeueWaitingThread(ThreadState ts);
+		
+		// the thread's effective tickets have changed while it waits here
+		public abstract void updateWaitingThread(ThreadState ts);
+		
+		protected abstract ThreadState pickNextThread();
+		
+		protected abstract boolean isWaiting(ThreadState ts);
 		
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			ThreadState ts = getThreadState(thread);
 			enqueueWaitingThread(ts);
 			ts.waitForAccess(this);
+			
+			if (SchedulerTrace.enabled) {
+				SchedulerTrace.record(SchedulerTrace.eventEnqueue, thread, ts.getEffectiveTickets());
+			}
 		}
 		
 		public void acquire(KThread thread) {
@@ -187,10 +196,11 @@ public class LotteryScheduler extends PriorityScheduler {
 			// unacquire previous
 			if (acquired != null) {
 				acquired.unacquire(this);
+				acquired = null;
 			}
 			
 			// if thread on waiting queue, dequeue it
-			if (waitQ.containsKey(ts)) {
+			if (isWaiting(ts)) {
 				dequeueWaitingThread(ts);
 			}
 			
@@ -205,103 +215,213 @@ public class LotteryScheduler extends PriorityScheduler {
 			if (ts == null) {
 				if (acquired != null) {
 					acquired.unacquire(this);
+					acquired = null;
 				}
 				return null;
 			}
 			
+			if (SchedulerTrace.enabled) {
+				SchedulerTrace.record(SchedulerTrace.eventDispatch, ts.thread, ts.getEffectiveTickets());
+			}
+			
 			acquire(ts.thread);
 			return ts.thread;
 		}
 		
-		// Hold a lottery when picks a new thread - DONE
-		protected ThreadState pickNextThread() {
-			int total = 0;
-			int num;
-			ThreadState result = null;
-			Random rand = new Random();
-			
-			if (waitQ.size() == 0) {
-				return null;
+		public long getSum() {
+			if (TPriority) {
+				return sum;
+			} else {
+				return 0;
 			}
+		}
+		
+		// The waiting threads gained or lost tickets; pass it on to the owner
+		protected void addTickets(long delta) {
+			sum += delta;
 			
-			num = rand.nextInt(getTicketSum()) + 1;
-			Iterator<ThreadState> it = waitQ.keySet().iterator();
-			
-			while (num > total && it.hasNext()) {
-				result = it.next();
-				total += waitQ.get(result).intValue();
+			if (TPriority && acquired != null) {
+				acquired.addDonation(delta);
 			}
-			return result;
 		}
 		
-		private int getTicketSum(){
-			if (sumCh) {
-				return updateSum();
-			} else {
-				return sum;
-			}
+		public boolean contains(KThread thread) {
+			return isWaiting(getThreadState(thread));
 		}
+	}
+	
+	/**
+	 * A queue that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+	 * so enqueueing, dequeueing, changing a thread's tickets and drawing the
+	 * winner are all O(log n) in the number of waiting threads.
+	 */
+	protected class LotteryQueue extends TicketQueue {
+		// the number of waiting threads; each one records its slot in
+		// ThreadState.slot
+		private int count;
 		
-		public int getSum() {
-			if(TPriority){
-				return getTicketSum();
-			} else {
-				return 0;
+		// slot i (1-based) holds owners[i] with tickets[i] tickets; tree is
+		// the Fenwick tree over tickets
+		private ThreadState[] owners;
+		private long[] tickets;
+		private long[] tree;
+		private int capacity;
+		private int[] freeSlots;
+		private int numFree;
+		private int nextSlot;
+		
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+			count = 0;
+			capacity = initialCapacity;
+			owners = new ThreadState[capacity + 1];
+			tickets = new long[capacity + 1];
+			tree = new long[capacity + 1];
+			freeSlots = new int[capacity];
+			numFree = 0;
+			nextSlot = 1;
+		}
+		
+		public void updateWaitingThread(ThreadState ts) {
+			Lib.assertTrue(isWaiting(ts));
+			setTickets(ts.slot, ts.getEffectiveTickets());
+		}
+		
+		public void dequeueWaitingThread(ThreadState ts) {
+			Lib.assertTrue(isWaiting(ts));
+			int slot = ts.slot;
+			
+			// give back the slot
+			setTickets(slot, 0);
+			owners[slot] = null;
+			freeSlots[numFree++] = slot;
+			ts.slot = 0;
+			count--;
+		}
+		
+		public void enqueueWaitingThread(ThreadState ts) {
+			// a thread waits on at most one lottery at a time
+			Lib.assertTrue(ts.slot == 0);
+			int slot = allocateSlot();
+			owners[slot] = ts;
+			ts.slot = slot;
+			count++;
+			setTickets(slot, ts.getEffectiveTickets());
+		}
+		
+		// Hold a lottery when picks a new thread
+		protected ThreadState pickNextThread() {
+			if (count == 0) {
+				return null;
 			}
+			
+			return owners[findSlot(drawTicket(sum) + 1)];
 		}
 		
-		private int updateSum() {
-			Lib.assertTrue(sumCh == true);
-			int total = 0;
-			Map.Entry<ThreadState, Integer> value;
-			Iterator<Map.Entry<ThreadState, Integer>> it = waitQ.entrySet().iterator();
+		// Change the tickets held in a slot, keeping the tree and the sum
+		// current and passing the difference on to the owner
+		private void setTickets(int slot, long value) {
+			long delta = value - tickets[slot];
+			
+			if (delta == 0) {
+				return;
+			}
 			
-			while (it.hasNext()) {
-				value = it.next();
-				total += value.getValue().intValue();
+			tickets[slot] = value;
+			for (int i = slot; i <= capacity; i += i & -i) {
+				tree[i] += delta;
 			}
+			addTickets(delta);
+		}
+		
+		// Find the slot holding the num'th ticket, 1 <= num <= sum
+		private int findSlot(long num) {
+			int pos = 0;
 			
-			sum = total;
-			sumCh = false;
-			return sum;
+			for (int step = Integer.highestOneBit(capacity); step > 0; step >>= 1) {
+				int next = pos + step;
+				
+				if (next <= capacity && tree[next] < num) {
+					pos = next;
+					num -= tree[next];
+				}
+			}
+			return pos + 1;
 		}
 		
-		private int threadTickets(ThreadState ts){
-			if (TPriority){
-				return ts.getEffectivePriority();
+		private int allocateSlot() {
+			if (numFree > 0) {
+				return freeSlots[--numFree];
 			}
-			else {
-				return ts.getPriority();
+			
+			if (nextSlot > capacity) {
+				grow();
 			}
+			return nextSlot++;
 		}
 		
-		public boolean contains(KThread thread) {
-			ThreadState ts = getThreadState(thread);
-			return waitQ.containsKey(ts);
+		// Double the number of slots and rebuild the tree in O(n)
+		private void grow() {
+			capacity *= 2;
+			owners = Arrays.copyOf(owners, capacity + 1);
+			tickets = Arrays.copyOf(tickets, capacity + 1);
+			freeSlots = Arrays.copyOf(freeSlots, capacity);
+			tree = new long[capacity + 1];
+			
+			for (int i = 1; i <= capacity; i++) {
+				tree[i] += tickets[i];
+				int parent = i + (i & -i);
+				
+				if (parent <= capacity) {
+					tree[parent] += tree[i];
+				}
+			}
+		}
+		
+		protected boolean isWaiting(ThreadState ts) {
+			return ts.slot != 0 && ts.slot < nextSlot && owners[ts.slot] == ts;
 		}
 		
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			System.out.println("Number of tickets = " + getTicketSum() + "\tNumber of threads on queue = " + size());
-			System.out.println(waitQ.toString());
+			System.out.println("Number of tickets = " + sum + "\tNumber of threads on queue = " + size());
+			
+			for (int i = 1; i < nextSlot; i++) {
+				if (owners[i] != null) {
+					System.out.print(owners[i].thread + " ");
+				}
+			}
+			System.out.println();
 		}
 		
 		public boolean empty() {
-			return waitQ.size() == 0;
-		}
-		
-		public boolean isValid() {
-			return !sumCh;
+			return count == 0;
 		}
 		
 		public int size() {
-			return waitQ.size();
+			return count;
 		}
 	}
 	
 	public class ThreadState extends PriorityScheduler.ThreadState {
+		// the queue this thread is waiting on, or null
+		protected TicketQueue waitingOn = null;
+		
+		// this thread's slot in the lottery it is waiting on, or 0
+		protected int slot = 0;
+		
+		// tickets transferred to this thread by the queues it holds
+		protected long donated = 0;
+		
+		// priority plus donated; effectivePriority is this clamped to an int
+		protected long effectiveTickets;
+		
 		public ThreadState(KThread thread) {
 			super(thread);
+			effectiveTickets = priority;
 		}
 	
 		public void setPriority(int priority) {
@@ -313,74 +433,67 @@ public class LotteryScheduler extends PriorityScheduler {
 			return effectivePriority;
 		}
 		
-		public void setEffectivePriority(int value) {
-			if (value < this.priority) {
-				this.effectivePriority = this.priority;
-			} else {
-				this.effectivePriority = value;
-			}
-			announcePrioChange();
+		public long getEffectiveTickets() {
+			return effectiveTickets;
 		}
 		
 		public int calculateEffectivePriority() {
-			int sum = priority;
-			int qSum = 0;
-			
-			Iterator<ThreadQueue> it = acquiredpqs.iterator();
-			LotteryQueue q;
-			
-			while (it.hasNext()) {
-				q = (LotteryQueue) it.next();
-				qSum = q.getSum();
-				
-				if (Integer.MAX_VALUE - sum < qSum) {
-					return Integer.MAX_VALUE;
-				}
-				sum += qSum;
-			}
-			return sum;
+			return (int) Math.min(calculateEffectiveTickets(), Integer.MAX_VALUE);
+		}
+		
+		public long calculateEffectiveTickets() {
+			return priority + donated;
 		}
 		
 		void effectivePriorityUpdated() {
-			int newEffectivePriority = calculateEffectivePriority();
+			long newEffectiveTickets = calculateEffectiveTickets();
 			
-			if (newEffectivePriority != effectivePriority) {
-				effectivePriority = newEffectivePriority;
+			if (newEffectiveTickets != effectiveTickets) {
+				effectiveTickets = newEffectiveTickets;
+				effectivePriority = calculateEffectivePriority();
 				announcePrioChange();
 			}
 		}
 		
+		// A queue this thread holds gained or lost tickets
+		void addDonation(long delta) {
+			if (SchedulerTrace.enabled && delta != 0) {
+				SchedulerTrace.record(SchedulerTrace.eventTransfer, thread, delta);
+			}
+			
+			donated += delta;
+			effectivePriorityUpdated();
+		}
+		
 		// Mark the waitQ the queue that this thread is waiting on
 		public void waitForAccess(ThreadQueue waitQ) {
-			waitingpqs.add(waitQ);
+			waitingOn = (TicketQueue) waitQ;
 		}
 		
 		// Thread acquires a queue
 		public void acquire(ThreadQueue waitQ) {
-			waitingpqs.remove(waitQ);
-			acquiredpqs.add(waitQ);
-			effectivePriorityUpdated();
+			if (waitingOn == waitQ) {
+				waitingOn = null;
+			}
+			addDonation(((TicketQueue) waitQ).getSum());
 		}
 		
 		// Unacquire the thread from the queue
 		public void unacquire(ThreadQueue noQ) {
-			acquiredpqs.remove(noQ);
-			effectivePriorityUpdated();
+			addDonation(-((TicketQueue) noQ).getSum());
 		}
 		
 		// Announce that the thread's effective priority has been changed by
 		// asking the queue to update
 		void announcePrioChange() {
-			
-			// starter = true;
-			LotteryQueue q;
-			Iterator<ThreadQueue> it;
-			it = waitingpqs.iterator();
-			
-			while (it.hasNext()) {
-				q = (LotteryQueue) it.next();
-				q.updateWaitingThread(this, effectivePriority);
+			if (waitingOn != null) {
+				waitingOn.updateWaitingThread(this);
 			}
 		}
 	}
-}
\ No newline at end of file
+	
+	private static final int initialCapacity = 8;
+	
+	// the one random number generator used for every lottery
+	private Random random;
+}
@@ -0,0 +1,100 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>message communicator</i> lets threads synchronously exchange whole
+ * messages of any type. Like <tt>Communicator</tt>, every speaker is paired
+ * with exactly one listener, and neither returns until the message has
+ * changed hands.
+ *
+ * <p>
+ * Only a reference moves, so a message of any size (a <tt>byte[]</tt>
+ * payload, a buffer, a request object) costs one rendezvous and no copying.
+ * The speaker hands ownership of the message to the listener, and must not
+ * modify it after <tt>speak()</tt> returns.
+ *
+ * <p>
+ * For example, to pass a page of data:
+ *
+ * <p><blockquote><pre>
+ * MessageCommunicator&lt;byte[]&gt; pages = new MessageCommunicator&lt;byte[]&gt;();
+ * ...
+ * pages.speak(page);			// in one thread
+ * ...
+ * byte[] page = pages.listen();	// in another
+ * </pre></blockquote>
+ *
+ * @param	<T>	the type of message.
+ */
+public class MessageCommunicator<T> {
+    /**
+     * Allocate a new message communicator.
+     */
+    public MessageCommunicator() {
+    }
+
+    /**
+     * Wait for a thread to listen through this communicator, and then hand
+     * <i>message</i> to the listener.
+     *
+     * <p>
+     * Does not return until this thread is paired up with a listening
+     * thread. Exactly one listener receives <i>message</i>.
+     *
+     * @param	message	the message to transfer. May be <tt>null</tt>.
+     */
+    public void speak(T message) {
+	lock.acquire();
+
+	// one message is in flight at a time
+	while (full)
+	    slotFree.sleep();
+
+	slot = message;
+	full = true;
+	long ticket = ++spoken;
+
+	messageReady.wake();
+
+	while (taken < ticket)
+	    messageTaken.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Wait for a thread to speak through this communicator, and then return
+     * the message that thread passed to <tt>speak()</tt>.
+     *
+     * @return	the message transferred.
+     */
+    public T listen() {
+	lock.acquire();
+
+	while (!full)
+	    messageReady.sleep();
+
+	T message = slot;
+	slot = null;
+	full = false;
+	taken++;
+
+	messageTaken.wakeAll();
+	slotFree.wake();
+
+	lock.release();
+	return message;
+    }
+
+    private Lock lock = new Lock();
+    private Condition2 slotFree = new Condition2(lock);
+    private Condition2 messageReady = new Condition2(lock);
+    private Condition2 messageTaken = new Condition2(lock);
+
+    private T slot = null;
+    private boolean full = false;
+
+    /** Messages placed in the slot so far, and messages taken from it. */
+    private long spoken = 0, taken = 0;
+}
@@ -0,0 +1,271 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that adjusts each thread's priority according to how it uses
+ * the processor: a multilevel feedback queue.
+ *
+ * <p>
+ * Every priority is a level with its own FIFO list, and the highest non-empty
+ * level always runs first, exactly as in a priority scheduler. Levels change
+ * with behaviour:
+ *
+ * <ol>
+ * <li>A new thread starts at the top level, <tt>priorityMaximum</tt>.
+ *
+ * <li>Each level has an allotment of processor time, which doubles at every
+ * level down. The running thread is charged every quantum from the timer
+ * interrupt, through <tt>Alarm.schedule()</tt>, and again when it gives up the
+ * processor, whether it was preempted, yielded or blocked. A thread that has
+ * used up its allotment drops one level. Because time accumulates across
+ * dispatches, a thread cannot stay high by yielding just before its quantum
+ * expires.
+ *
+ * <li>A thread that blocks and is woken having used less than half of its
+ * allotment is treated as I/O-bound and rises one level.
+ *
+ * <li>A thread that has waited on the ready queue for longer than the aging
+ * period rises one level, and keeps rising while it waits. Waiting threads
+ * are aged on the same timer as the charging, as well as at every dispatch,
+ * so this bounds how long any thread can be starved.
+ * </ol>
+ *
+ * <p>
+ * Priority is still donated through locks and joins, using the priority
+ * scheduler's donation rules, so a low-level thread holding a lock that a
+ * high-level thread wants runs at the waiter's level.
+ *
+ * <p>
+ * The base quantum and the aging period, both in timer ticks, are read from
+ * the <tt>nachos.conf</tt> keys
+ * <tt>MultilevelFeedbackScheduler.quantum</tt> and
+ * <tt>MultilevelFeedbackScheduler.agingTicks</tt>.
+ */
+public class MultilevelFeedbackScheduler extends PriorityScheduler {
+
+	/**
+	 * Allocate a new multilevel feedback scheduler.
+	 */
+
+	public MultilevelFeedbackScheduler() {
+		quantum = Config.getInteger("MultilevelFeedbackScheduler.quantum",
+				Stats.TimerTicks);
+		agingTicks = Config.getInteger("MultilevelFeedbackScheduler.agingTicks",
+				20 * Stats.TimerTicks);
+		Lib.assertTrue(quantum > 0 && agingTicks > 0);
+	}
+
+	/**
+	 * Allocate a new feedback thread queue. Queues that transfer priority are
+	 * ordinary priority queues; the others keep one list per level.
+	 *
+	 * @param transferPriority
+	 *            <tt>true</tt> if this queue should transfer priority from
+	 *            waiting threads to the owning thread.
+	 * @return a new thread queue.
+	 */
+
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		if (transferPriority)
+			return new PriorityQueue(true);
+
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the processor time a thread may use at the specified level
+	 * before it is demoted.
+	 *
+	 * @param level
+	 *            the level.
+	 * @return the allotment, in ticks.
+	 */
+
+	public long allotment(int level) {
+		return (long) quantum << (priorityMaximum - level);
+	}
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A per-level queue that applies the feedback rules when it is the ready
+	 * queue. On any other queue (semaphores, condition variables) it behaves
+	 * like a plain <tt>BucketQueue</tt>.
+	 */
+
+	protected class FeedbackQueue extends BucketQueue {
+
+		FeedbackQueue() {
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (isReadyQueue()) {
+				ThreadState ts = getThreadState(thread);
+				ts.readySince = Machine.timer().getTime();
+
+				// woken from blocking without using much of its allotment
+				if (thread != KThread.currentThread()
+						&& ts.used < allotment(ts.priority) / 2)
+					ts.changeLevel(ts.priority + 1);
+			}
+			super.waitForAccess(thread);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!isReadyQueue())
+				return super.nextThread();
+
+			startTimer();
+
+			long now = Machine.timer().getTime();
+			chargeCurrentThread(now);
+			age(now);
+
+			KThread thread = super.nextThread();
+
+			if (thread != null)
+				getThreadState(thread).dispatchedAt = now;
+
+			return thread;
+		}
+
+		private boolean isReadyQueue() {
+			return this == KThread.readyQueue();
+		}
+
+		/**
+		 * Once the alarm exists, arrange for <tt>timerTick()</tt> to run
+		 * from the timer interrupt every quantum.
+		 */
+
+		private void startTimer() {
+			if (timerStarted || ThreadedKernel.alarm == null)
+				return;
+
+			timerStarted = true;
+			ThreadedKernel.alarm.schedule(quantum, quantum, new Runnable() {
+				public void run() {
+					timerTick();
+				}
+			});
+		}
+
+		/**
+		 * Charge the running thread for the time it has run so far, and age
+		 * the waiting threads, without waiting for the next dispatch. The
+		 * timer interrupt then yields, so a demoted thread is preempted at
+		 * once.
+		 */
+
+		private void timerTick() {
+			long now = Machine.timer().getTime();
+			ThreadState ts = getThreadState(KThread.currentThread());
+
+			if (ts.dispatchedAt >= 0) {
+				charge(ts, now);
+				ts.dispatchedAt = now;
+			}
+			age(now);
+		}
+
+		/**
+		 * The current thread is about to give up the processor. Charge it
+		 * for the time it ran.
+		 */
+
+		private void chargeCurrentThread(long now) {
+			ThreadState ts = getThreadState(KThread.currentThread());
+
+			if (ts.dispatchedAt < 0)
+				return;
+
+			charge(ts, now);
+			ts.dispatchedAt = -1;
+		}
+
+		/**
+		 * Charge a thread for the time since it was dispatched or last
+		 * charged, and demote it if its allotment is used up.
+		 */
+
+		private void charge(ThreadState ts, long now) {
+			ts.used += now - ts.dispatchedAt;
+
+			if (ts.used >= allotment(ts.priority))
+				ts.changeLevel(ts.priority - 1);
+		}
+
+		/**
+		 * Promote the longest-waiting thread of each level for as long as it
+		 * has waited past the aging period. Only the head of each level needs
+		 * to be checked, since the lists are in arrival order.
+		 */
+
+		private void age(long now) {
+			for (int level = priorityMaximum - 1; level >= priorityMinimum; level--) {
+				ThreadState ts;
+
+				while ((ts = (ThreadState) oldestAt(level)) != null
+						&& now - ts.readySince >= agingTicks) {
+					ts.readySince = now;
+					ts.changeLevel(ts.priority + 1);
+				}
+			}
+		}
+
+		private boolean timerStarted = false;
+	}
+
+	/**
+	 * The scheduling state of a thread under feedback scheduling. The
+	 * thread's priority is its current level.
+	 */
+
+	public class ThreadState extends PriorityScheduler.ThreadState {
+
+		/** Ticks used at the current level. */
+
+		protected long used = 0;
+
+		/** When the thread was last dispatched, or -1 if not running. */
+
+		protected long dispatchedAt = -1;
+
+		/** When the thread last joined or moved up on the ready queue. */
+
+		protected long readySince = 0;
+
+		public ThreadState(KThread thread) {
+			super(thread);
+			this.priority = priorityMaximum;
+			this.effectivePriority = this.priority;
+		}
+
+		/**
+		 * Move this thread to the specified level, clamped to the valid
+		 * range, and start its allotment afresh.
+		 */
+
+		void changeLevel(int level) {
+			level = Math.max(priorityMinimum, Math.min(priorityMaximum, level));
+			used = 0;
+
+			if (level != priority)
+				setPriority(level);
+		}
+	}
+
+	private int quantum;
+
+	private int agingTicks;
+}
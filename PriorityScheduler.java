@@ -3,12 +3,7 @@ package nachos.threads;
 import nachos.machine.*;
 import nachos.threads.LotteryScheduler.LotteryQueue;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -18,7 +13,10 @@ import java.util.Iterator;
  * to be dequeued is always a thread with priority no less than any other
  * waiting thread's priority. Like a round-robin scheduler, the thread that is
  * dequeued is, among all the threads of the same (highest) priority, the thread
- * that has been waiting longest.
+ * that has been waiting longest. On a queue that does not transfer priority,
+ * a waiting thread whose effective priority changes loses its place in line,
+ * and counts as having arrived at its new priority when it moved; a
+ * transferring queue keeps its original arrival order.
  * 
  * <p>
  * Essentially, a priority scheduler gives access in a round-robin fassion to
@@ -50,6 +48,9 @@ public class PriorityScheduler extends Scheduler {
 	 */
 
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		if (!transferPriority)
+			return new BucketQueue();
+
 		return new PriorityQueue(transferPriority);
 	}
 
@@ -128,139 +129,187 @@ public class PriorityScheduler extends Scheduler {
 		return (ThreadState) thread.schedulingState;
 	}
 
+
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in an indexed binary heap, so a waiter whose
+	 * effective priority changes can be moved to its new position in
+	 * O(log n) without being removed and reinserted.
 	 */
 
 	protected class PriorityQueue extends ThreadQueue {
 
-		private HashMap<ThreadState, ThreadWaiter> threadWaiterHash = 	// KThread -> threadWaiter on PQ
-
-				new HashMap<ThreadState, ThreadWaiter>(); 
+		/** Indexed max-heap of waiters; each waiter knows its own slot. */
 
-		private java.util.PriorityQueue<ThreadWaiter> waitQueue =
+		private ThreadWaiter[] waitQueue = new ThreadWaiter[initialHeapSize];
 
-				new java.util.PriorityQueue<ThreadWaiter>();
+		private int size = 0;
 
 		protected ThreadState acquired;
 
 		public boolean transferPriority;
 
-		private int max = 0;
+		private int max = priorityMinimum;
 
-		private int enqueueOrder = 0;
+		private long enqueueOrder = 0;
+
+		/**
+		 * The slot this queue occupies in the donor heap of
+		 * <tt>acquired</tt>, or -1 if it is not donating.
+		 */
+
+		int donorIndex = -1;
 
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
 		}
 
+		/**
+		 * Return the highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if no threads are waiting.
+		 * 
+		 * @return the priority this queue donates to its owner.
+		 */
+
 		public int getMax() {
 			return max;
 		}
 
-		public void dbg(String str) {
-			//System.out.println(this + " " + str);
-		}
-
 		public void updateWaitingThread(ThreadState ts) {
-			dbg("Update " + ts);
-			Lib.assertTrue(threadWaiterHash.containsKey(ts));
-			ThreadWaiter tw = threadWaiterHash.get(ts);
+			ThreadWaiter tw = ts.findWaiter(this);
+			Lib.assertTrue(tw != null);
+			int effectivePriority = ts.getEffectivePriority();
 
-			if (tw.priority == ts.getEffectivePriority()) {
+			if (tw.priority == effectivePriority) {
 				return;
 			}
-			waitQueue.remove(tw);
-			
-			ThreadWaiter twait = new ThreadWaiter(ts, ts.getEffectivePriority(), tw.time);
-			
-			waitQueue.add(twait);
-			threadWaiterHash.put(ts, twait);
-			ThreadWaiter nextTw = waitQueue.peek();
-			newMax(nextTw.priority);
-		}
-
-		public void newMax(int newmax) {
-			max = newmax;
-			
-			if (this.acquired != null) {
-				this.acquired.priorityChange(this.max);
-			}
+			reposition(tw, effectivePriority);
+			updateMax();
 		}
 
 		public void dequeueWaitingThread(ThreadState ts) {
-			dbg("DQ " + ts);
-			Lib.assertTrue(threadWaiterHash.containsKey(ts));
-			ThreadWaiter tw = threadWaiterHash.get(ts);
-			waitQueue.remove(tw);
-			threadWaiterHash.remove(ts);
-
-			int deqPri = tw.priority;
-			
-			if (max == deqPri) {
-				ThreadWaiter nextTw = waitQueue.peek();
-				
-				if (nextTw == null) {
-					newMax(0);
-				} else {
-					newMax(nextTw.priority);
-				}
-			}
+			ThreadWaiter tw = ts.findWaiter(this);
+			Lib.assertTrue(tw != null);
+			remove(tw);
+			ts.releaseWaiter(tw);
+			updateMax();
 		}
 
 		public void enqueueWaitingThread(ThreadState ts) {
-			dbg("EQ " + ts);
-			int effectivePriority = ts.getEffectivePriority();
-			Lib.assertTrue(!threadWaiterHash.containsKey(ts));
-			enqueueOrder++;
-			ThreadWaiter twait = new ThreadWaiter(ts, effectivePriority, enqueueOrder);
-			waitQueue.add(twait);
-			threadWaiterHash.put(ts, twait);
-
-			if (effectivePriority > this.max) {
-				newMax(effectivePriority);
+			Lib.assertTrue(ts.findWaiter(this) == null);
+			ThreadWaiter tw = ts.newWaiter(this, ++enqueueOrder);
+			insert(tw);
+
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.record(SchedulerTrace.eventEnqueue, ts.thread, tw.priority);
+
+			updateMax();
+		}
+
+		/**
+		 * Add a new waiter to the underlying storage.
+		 */
+
+		protected void insert(ThreadWaiter tw) {
+			if (size == waitQueue.length) {
+				waitQueue = Arrays.copyOf(waitQueue, size * 2);
+			}
+			tw.index = size;
+			waitQueue[size++] = tw;
+			siftUp(tw.index);
+		}
+
+		/**
+		 * Remove a waiter from the underlying storage.
+		 */
+
+		protected void remove(ThreadWaiter tw) {
+			removeAt(tw.index);
+		}
+
+		/**
+		 * Give a waiter a new priority and move it to its new position.
+		 */
+
+		protected void reposition(ThreadWaiter tw, int newPriority) {
+			boolean raised = newPriority > tw.priority;
+			tw.priority = newPriority;
+
+			if (raised) {
+				siftUp(tw.index);
+			} else {
+				siftDown(tw.index);
+			}
+		}
+
+		/**
+		 * Return the waiter that should receive access next, or
+		 * <tt>null</tt> if no threads are waiting.
+		 */
+
+		protected ThreadWaiter top() {
+			return (size == 0) ? null : waitQueue[0];
+		}
+
+		/**
+		 * Recompute the donated priority after the top of the queue may have
+		 * changed, and push the change to the owning thread.
+		 */
+
+		private void updateMax() {
+			ThreadWaiter first = top();
+			int newMax = (first == null) ? priorityMinimum : first.priority;
+
+			if (newMax == max) {
+				return;
+			}
+			max = newMax;
+
+			if (donorIndex >= 0) {
+				acquired.donationChanged(this);
 			}
-			dbg("EQ Done " + ts);
 		}
 
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			ThreadState ts = getThreadState(thread);
 			enqueueWaitingThread(ts);
-			dbg("WFA " + ts);
 			ts.waitForAccess(this);
-			dbg("WFA Done " + ts);
 		}
 
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			ThreadState ts = getThreadState(thread);
-			dbg("Acquire " + ts);
 
 			if (acquired != null) {
 				acquired.unacquire(this);
+				acquired = null;
 			}
 
-			if (threadWaiterHash.containsKey(ts)) {
+			if (ts.findWaiter(this) != null) {
 				dequeueWaitingThread(ts);
 			}
 			this.acquired = ts;
 			ts.acquire(this);
-			dbg("Acquire done " + ts);
 		}
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			dbg("  NextThread " + waitQueue );
 			ThreadState ts = pickNextThread();
 
 			if (ts == null) {
 				if (acquired != null) {
 					acquired.unacquire(this);
+					acquired = null;
 				}
-				dbg("  NextThread NULL" );
 				return null;
 			}
+
+			if (SchedulerTrace.enabled)
+				SchedulerTrace.record(SchedulerTrace.eventDispatch, ts.thread, ts.getEffectivePriority());
+
 			acquire(ts.thread);
 			return ts.thread;
 		}
@@ -273,29 +322,179 @@ public class PriorityScheduler extends Scheduler {
 		 */
 
 		protected ThreadState pickNextThread() {
-			ThreadWaiter st = waitQueue.peek();
-			return st != null ? st.state : null;
+			ThreadWaiter first = top();
+			return (first == null) ? null : first.state;
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			dbg(waitQueue.toString());
-		}
 
-		/**
-		 * <tt>true</tt> if this queue should transfer priority from waiting
-		 * threads to the owning thread.
-		 */
+			for (int i = 0; i < size; i++)
+				System.out.print(waitQueue[i] + " ");
+		}
 
 		@Override
 		public boolean contains(KThread thread) {
 			ThreadState ts = getThreadState(thread);
-			return threadWaiterHash.containsKey(ts);
+			return ts.findWaiter(this) != null;
 		}
 
 		@Override
 		public boolean empty() {
-			return waitQueue.size() == 0;
+			return top() == null;
+		}
+
+		private void removeAt(int i) {
+			ThreadWaiter last = waitQueue[--size];
+			waitQueue[size] = null;
+
+			if (i == size) {
+				return;
+			}
+			ThreadWaiter removed = waitQueue[i];
+			last.index = i;
+			waitQueue[i] = last;
+
+			if (last.compareTo(removed) < 0) {
+				siftUp(i);
+			} else {
+				siftDown(i);
+			}
+		}
+
+		private void siftUp(int i) {
+			ThreadWaiter tw = waitQueue[i];
+
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				ThreadWaiter p = waitQueue[parent];
+
+				if (tw.compareTo(p) >= 0)
+					break;
+				p.index = i;
+				waitQueue[i] = p;
+				i = parent;
+			}
+			tw.index = i;
+			waitQueue[i] = tw;
+		}
+
+		private void siftDown(int i) {
+			ThreadWaiter tw = waitQueue[i];
+			int half = size >>> 1;
+
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+
+				if (right < size && waitQueue[right].compareTo(waitQueue[child]) < 0)
+					child = right;
+
+				if (tw.compareTo(waitQueue[child]) <= 0)
+					break;
+				waitQueue[child].index = i;
+				waitQueue[i] = waitQueue[child];
+				i = child;
+			}
+			tw.index = i;
+			waitQueue[i] = tw;
+		}
+	}
+
+	/**
+	 * A <tt>PriorityQueue</tt> that keeps one FIFO list per priority level,
+	 * plus a bitmap of the non-empty levels. Since there are only eight
+	 * priorities, enqueue, dequeue and picking the next thread are all O(1)
+	 * and touch no hashing or boxing. The lists are threaded through the
+	 * <tt>ThreadWaiter</tt> entries themselves, so nothing is allocated.
+	 * 
+	 * <p>
+	 * A waiter whose priority changes moves to the back of its new level,
+	 * losing its place in line; one whose priority is unchanged stays put.
+	 * Used for queues that do not transfer priority, such as the ready queue.
+	 */
+
+	protected class BucketQueue extends PriorityQueue {
+
+		private ThreadWaiter[] heads = new ThreadWaiter[priorityMaximum + 1];
+
+		private ThreadWaiter[] tails = new ThreadWaiter[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set iff level <i>p</i> has a waiting thread. */
+
+		private int nonEmpty = 0;
+
+		BucketQueue() {
+			super(false);
+		}
+
+		protected void insert(ThreadWaiter tw) {
+			int level = tw.priority;
+			tw.nextInQueue = null;
+			tw.prevInQueue = tails[level];
+
+			if (tails[level] == null) {
+				heads[level] = tw;
+				nonEmpty |= 1 << level;
+			} else {
+				tails[level].nextInQueue = tw;
+			}
+			tails[level] = tw;
+		}
+
+		protected void remove(ThreadWaiter tw) {
+			int level = tw.priority;
+
+			if (tw.prevInQueue == null) {
+				heads[level] = tw.nextInQueue;
+			} else {
+				tw.prevInQueue.nextInQueue = tw.nextInQueue;
+			}
+
+			if (tw.nextInQueue == null) {
+				tails[level] = tw.prevInQueue;
+			} else {
+				tw.nextInQueue.prevInQueue = tw.prevInQueue;
+			}
+
+			if (heads[level] == null) {
+				nonEmpty &= ~(1 << level);
+			}
+			tw.prevInQueue = tw.nextInQueue = null;
+		}
+
+		protected void reposition(ThreadWaiter tw, int newPriority) {
+			if (newPriority == tw.priority)
+				return;
+
+			remove(tw);
+			tw.priority = newPriority;
+			insert(tw);
+		}
+
+		protected ThreadWaiter top() {
+			if (nonEmpty == 0)
+				return null;
+
+			return heads[31 - Integer.numberOfLeadingZeros(nonEmpty)];
+		}
+
+		/**
+		 * Return the thread that has waited longest at the specified
+		 * priority, or <tt>null</tt> if none is waiting there.
+		 */
+
+		protected ThreadState oldestAt(int level) {
+			return (heads[level] == null) ? null : heads[level].state;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = priorityMaximum; level >= priorityMinimum; level--) {
+				for (ThreadWaiter tw = heads[level]; tw != null; tw = tw.nextInQueue)
+					System.out.print(tw + " ");
+			}
 		}
 	}
 
@@ -304,6 +503,13 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * The queues this thread holds that transfer priority are kept in a
+	 * max-heap keyed on the priority each one donates, so the effective
+	 * priority is always available from the top of the heap. A change is
+	 * pushed along the wait-for chain one link at a time, each link costing
+	 * O(log n).
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 
@@ -319,14 +525,19 @@ public class PriorityScheduler extends Scheduler {
 
 		protected int effectivePriority;
 
-		/**
-		 * The list of priority queues for which I'm holding the resource or
-		 * waiting for the resource
-		 */
+		/** Max-heap of the donating queues whose resource this thread holds. */
+
+		private PriorityQueue[] donors = new PriorityQueue[initialHeapSize];
 
-		protected HashSet<ThreadQueue> acquiredpqs = new HashSet<ThreadQueue>();
+		private int numDonors = 0;
 
-		protected HashSet<ThreadQueue> waitingpqs = new HashSet<ThreadQueue>();
+		/** Waiter entries for the queues this thread is waiting on. */
+
+		private ThreadWaiter waiting = null;
+
+		/** Retired waiter entries, reused so that waiting does not allocate. */
+
+		private ThreadWaiter freeWaiters = null;
 
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -343,22 +554,38 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 		void effectivePriorityUpdated() {
-			PriorityQueue queue;
-			Iterator<ThreadQueue> iter;
+			updateEffectivePriority(SchedulerTrace.eventDonation);
+		}
+
+		/**
+		 * Recompute the effective priority, and if it changed, record the
+		 * change as the specified trace event and reposition this thread in
+		 * every queue it is waiting on.
+		 */
+
+		private void updateEffectivePriority(int event) {
 			int newEffectivePriority = calculateEffectivePriority();
-			
+
 			if (newEffectivePriority != effectivePriority) {
 				effectivePriority = newEffectivePriority;
-				iter = waitingpqs.iterator();
-				
-				while(iter.hasNext()){
-					queue = (PriorityQueue) iter.next();
-					queue.updateWaitingThread(this);
-				}
+
+				if (SchedulerTrace.enabled)
+					SchedulerTrace.record(event, thread, effectivePriority);
+
+				for (ThreadWaiter tw = waiting; tw != null; tw = tw.next)
+					tw.queue.updateWaitingThread(this);
 			}
-		}		
+		}
+
+		/**
+		 * Called by a donating queue this thread holds when the priority it
+		 * donates has changed.
+		 */
 
-		public void priorityChange(int newPri) {
+		void donationChanged(PriorityQueue queue) {
+			Lib.assertTrue(donors[queue.donorIndex] == queue);
+			int i = siftDonorUp(queue.donorIndex);
+			siftDonorDown(i);
 			effectivePriorityUpdated();
 		}
 
@@ -379,17 +606,10 @@ public class PriorityScheduler extends Scheduler {
 		 */
 
 		public int calculateEffectivePriority() {
-			PriorityQueue queue;
-			int max = priority;
-			
-			Iterator<ThreadQueue> iter = acquiredpqs.iterator();
-			
-			while(iter.hasNext()){
-			//for (ThreadQueue queue : acquiredpqs) {
-				queue = (PriorityQueue) iter.next();
-				max = Math.max(max, queue.getMax());
-			}
-			return max;
+			if (numDonors == 0)
+				return priority;
+
+			return Math.max(priority, donors[0].getMax());
 		}
 		
 		public int getEffectivePriority() {
@@ -405,7 +625,7 @@ public class PriorityScheduler extends Scheduler {
 		
 		public void setPriority(int priority) {
 			this.priority = priority;
-			effectivePriorityUpdated();
+			updateEffectivePriority(SchedulerTrace.eventPriority);
 		}
 
 		/**
@@ -422,7 +642,7 @@ public class PriorityScheduler extends Scheduler {
 		 */
 
 		public void waitForAccess(ThreadQueue waitQueue) {
-			waitingpqs.add(waitQueue);
+			Lib.assertTrue(findWaiter((PriorityQueue) waitQueue) != null);
 		}
 
 		/**
@@ -437,17 +657,132 @@ public class PriorityScheduler extends Scheduler {
 		 */
 
 		public void acquire(ThreadQueue waitQueue) {
-			waitingpqs.remove(waitQueue);
-			acquiredpqs.add(waitQueue);
+			PriorityQueue queue = (PriorityQueue) waitQueue;
+
+			if (queue.transferPriority) {
+				addDonor(queue);
+			}
 			effectivePriorityUpdated();
 		}
 
 		public void unacquire(ThreadQueue noQueue) {
-			acquiredpqs.remove(noQueue);
+			PriorityQueue queue = (PriorityQueue) noQueue;
+
+			if (queue.donorIndex >= 0) {
+				removeDonor(queue);
+			}
 			effectivePriorityUpdated();
 		}
+
+		ThreadWaiter findWaiter(PriorityQueue queue) {
+			for (ThreadWaiter tw = waiting; tw != null; tw = tw.next) {
+				if (tw.queue == queue)
+					return tw;
+			}
+			return null;
+		}
+
+		ThreadWaiter newWaiter(PriorityQueue queue, long time) {
+			ThreadWaiter tw = freeWaiters;
+
+			if (tw != null) {
+				freeWaiters = tw.next;
+			} else {
+				tw = new ThreadWaiter(this, effectivePriority, time);
+			}
+			tw.queue = queue;
+			tw.priority = effectivePriority;
+			tw.time = time;
+			tw.next = waiting;
+			waiting = tw;
+			return tw;
+		}
+
+		void releaseWaiter(ThreadWaiter tw) {
+			if (waiting == tw) {
+				waiting = tw.next;
+			} else {
+				ThreadWaiter prev = waiting;
+
+				while (prev.next != tw)
+					prev = prev.next;
+				prev.next = tw.next;
+			}
+			tw.queue = null;
+			tw.index = -1;
+			tw.next = freeWaiters;
+			freeWaiters = tw;
+		}
+
+		private void addDonor(PriorityQueue queue) {
+			Lib.assertTrue(queue.donorIndex < 0);
+
+			if (numDonors == donors.length) {
+				donors = Arrays.copyOf(donors, numDonors * 2);
+			}
+			queue.donorIndex = numDonors;
+			donors[numDonors++] = queue;
+			siftDonorUp(queue.donorIndex);
+		}
+
+		private void removeDonor(PriorityQueue queue) {
+			int i = queue.donorIndex;
+			PriorityQueue last = donors[--numDonors];
+			donors[numDonors] = null;
+			queue.donorIndex = -1;
+
+			if (i == numDonors) {
+				return;
+			}
+			last.donorIndex = i;
+			donors[i] = last;
+			siftDonorDown(siftDonorUp(i));
+		}
+
+		private int siftDonorUp(int i) {
+			PriorityQueue queue = donors[i];
+
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+
+				if (queue.getMax() <= donors[parent].getMax())
+					break;
+				donors[parent].donorIndex = i;
+				donors[i] = donors[parent];
+				i = parent;
+			}
+			queue.donorIndex = i;
+			donors[i] = queue;
+			return i;
+		}
+
+		private void siftDonorDown(int i) {
+			PriorityQueue queue = donors[i];
+			int half = numDonors >>> 1;
+
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+
+				if (right < numDonors && donors[right].getMax() > donors[child].getMax())
+					child = right;
+
+				if (queue.getMax() >= donors[child].getMax())
+					break;
+				donors[child].donorIndex = i;
+				donors[i] = donors[child];
+				i = child;
+			}
+			queue.donorIndex = i;
+			donors[i] = queue;
+		}
 	}
 
+	/**
+	 * An entry for a thread waiting on a <tt>PriorityQueue</tt>. Entries are
+	 * owned and recycled by the waiting thread's <tt>ThreadState</tt>.
+	 */
+
 	public class ThreadWaiter implements Comparable<ThreadWaiter> {
 
 		protected ThreadState state;
@@ -456,6 +791,20 @@ public class PriorityScheduler extends Scheduler {
 
 		protected int priority;
 
+		/** The queue this entry is waiting on, and its slot in that heap. */
+
+		PriorityQueue queue;
+
+		int index = -1;
+
+		/** Next entry in the owner's waiting list or free list. */
+
+		ThreadWaiter next;
+
+		/** Neighbours in a <tt>BucketQueue</tt> level list. */
+
+		ThreadWaiter prevInQueue, nextInQueue;
+
 		public ThreadWaiter(ThreadState state, int priority, long time) {
 			this.priority = priority;
 			this.state = state;
@@ -477,21 +826,10 @@ public class PriorityScheduler extends Scheduler {
 			return 1;
 		}
 
-		@Override
-		public boolean equals(Object other) {
-			if (other == null)
-				return false;
-
-			if (!(other instanceof ThreadWaiter))
-				return false;
-
-			ThreadWaiter o = (ThreadWaiter) other;
-
-			return this.state.thread.compareTo(o.state.thread) == 0;
-		}
-
 		public String toString() {
 			return this.state.thread.toString();
 		}
 	}
-}
\ No newline at end of file
+
+	private static final int initialHeapSize = 8;
+}
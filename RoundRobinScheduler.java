@@ -2,15 +2,17 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
  * with linked lists. When a thread begins waiting for access, it is appended
  * to the end of a list. The next thread to receive access is always the first
  * thread in the list. This causes access to be given on a first-come
  * first-serve basis.
+ *
+ * <p>
+ * The lists are intrusive: the link nodes hang off each thread's
+ * <tt>schedulingState</tt> and are reused, so once a thread has waited once,
+ * waiting again allocates nothing.
  */
 public class RoundRobinScheduler extends Scheduler {
     /**
@@ -38,8 +40,17 @@ public class RoundRobinScheduler extends Scheduler {
 	 */    
 	public void waitForAccess(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    waitQueue.add(thread);
+	    Lib.assertTrue(findLink(thread) == null);
+
+	    Link link = freeLink(thread);
+	    link.queue = this;
+	    link.next = null;
+
+	    if (tail == null)
+		head = link;
+	    else
+		tail.next = link;
+	    tail = link;
 	}
 
 	/**
@@ -52,10 +63,17 @@ public class RoundRobinScheduler extends Scheduler {
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    if (waitQueue.isEmpty())
+	    if (head == null)
 		return null;
 
-	    return (KThread) waitQueue.removeFirst();
+	    Link link = head;
+	    head = link.next;
+	    if (head == null)
+		tail = null;
+
+	    link.queue = null;
+	    link.next = null;
+	    return link.thread;
 	}
 
 	/**
@@ -66,7 +84,7 @@ public class RoundRobinScheduler extends Scheduler {
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 		       
-	    Lib.assertTrue(waitQueue.isEmpty());
+	    Lib.assertTrue(head == null);
 	}
 
 	/**
@@ -75,22 +93,84 @@ public class RoundRobinScheduler extends Scheduler {
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
 
-	    for (Iterator i=waitQueue.iterator(); i.hasNext(); )
-		System.out.print((KThread) i.next() + " ");
+	    for (Link link = head; link != null; link = link.next)
+		System.out.print(link.thread + " ");
 	}
 
-	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+	/**
+	 * Return the link that has the specified thread waiting on this queue,
+	 * or <tt>null</tt> if it is not waiting here.
+	 */
+	private Link findLink(KThread thread) {
+	    for (Link link = firstLink(thread); link != null;
+		 link = link.sibling) {
+		if (link.queue == this)
+		    return link;
+	    }
+	    return null;
+	}
 
-	@Override
-	public boolean contains(KThread thread2) {
-		// TODO Auto-generated method stub
-		return false;
+	public boolean contains(KThread thread) {
+	    return findLink(thread) != null;
 	}
 
-	@Override
 	public boolean empty() {
-		// TODO Auto-generated method stub
-		return false;
+	    return head == null;
+	}
+
+	private Link head = null;
+	private Link tail = null;
+    }
+
+    /**
+     * Return the first of the specified thread's links, or <tt>null</tt> if
+     * it has none. Only this scheduler may set <tt>schedulingState</tt>.
+     */
+    private static Link firstLink(KThread thread) {
+	Object state = thread.schedulingState;
+
+	if (state != null && !(state instanceof Link))
+	    Lib.assertNotReached("scheduling state of " + thread
+				 + " was not set by RoundRobinScheduler");
+
+	return (Link) state;
+    }
+
+    /**
+     * Return an unused link belonging to the specified thread. A thread
+     * normally waits on at most one queue, so its first link is almost
+     * always free; a new one is only allocated when it is not.
+     */
+    private static Link freeLink(KThread thread) {
+	Link first = firstLink(thread);
+
+	for (Link link = first; link != null; link = link.sibling) {
+	    if (link.queue == null)
+		return link;
 	}
+
+	Link link = new Link(thread);
+	link.sibling = first;
+	thread.schedulingState = link;
+	return link;
+    }
+
+    /**
+     * A node of a <tt>FifoQueue</tt>. Each thread owns a chain of these,
+     * one per queue it can be waiting on at the same time.
+     */
+    private static class Link {
+	Link(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread this link belongs to. */
+	KThread thread;
+	/** The queue this link is on, or <tt>null</tt> if it is free. */
+	FifoQueue queue = null;
+	/** The next link on the same queue. */
+	Link next = null;
+	/** The next link belonging to the same thread. */
+	Link sibling = null;
     }
 }
@@ -0,0 +1,305 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Random;
+
+/**
+ * Measures how fast each scheduler's <tt>ThreadQueue</tt> implementation
+ * handles <tt>waitForAccess()</tt>, <tt>nextThread()</tt> and
+ * <tt>acquire()</tt>, so that the schedulers can be compared directly.
+ *
+ * <p>
+ * Every scheduler is driven through three workloads:
+ *
+ * <ol>
+ * <li><b>cycle</b>: a single non-transferring queue (like the ready queue)
+ * holding <i>n</i> threads; each operation removes the next thread and puts it
+ * back.
+ *
+ * <li><b>chain</b>: a donation chain of <i>depth</i> transferring queues, each
+ * held by a thread waiting on the next. Each operation adds a waiter at the
+ * far end, which must be propagated down the whole chain, then hands the queue
+ * to it and back.
+ *
+ * <li><b>churn</b>: <i>n</i> threads spread across eight non-transferring
+ * queues; each operation moves the next thread of a random queue to another
+ * random queue.
+ * </ol>
+ *
+ * <p>
+ * Results are reported in operations per second and bytes allocated per
+ * operation. Allocation is the growth of the heap over the timed run, starting
+ * from a collected heap, less the growth measured for a run that allocates a
+ * single object: the heap is handed out in chunks, so any run appears to
+ * allocate at least one. Growth within that noise floor is reported as 0. A
+ * collection during the run makes the figure an underestimate, and if the
+ * heap shrank it is shown as <tt>n/a</tt>. The
+ * queues are exercised directly with interrupts disabled, so none of the
+ * simulated hardware is involved. The threads are never forked, so large
+ * populations cost no Java threads.
+ *
+ * <p>
+ * The schedulers, population sizes, chain depths and number of operations
+ * are read from the <tt>nachos.conf</tt> keys
+ * <tt>SchedulerBenchmark.schedulers</tt>, <tt>SchedulerBenchmark.sizes</tt>,
+ * <tt>SchedulerBenchmark.depths</tt> and <tt>SchedulerBenchmark.ops</tt>.
+ * Set <tt>Kernel.kernel</tt> to <tt>nachos.threads.BenchmarkKernel</tt> to
+ * run it.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Allocate a benchmark for the specified scheduler.
+     *
+     * @param	scheduler	the scheduler whose queues to measure.
+     * @param	ops		the number of operations to time per
+     *				workload.
+     */
+    public SchedulerBenchmark(Scheduler scheduler, int ops) {
+	this.scheduler = scheduler;
+	this.ops = ops;
+
+	if (noiseBytes < 0)
+	    noiseBytes = calibrate();
+    }
+
+    /**
+     * Time <i>ops</i> next/wait cycles on one queue of <i>n</i> threads.
+     *
+     * @param	n	the number of waiting threads.
+     * @return	the result.
+     */
+    public Result cycle(int n) {
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = population(n);
+
+	for (int i=0; i<n; i++)
+	    queue.waitForAccess(threads[i]);
+
+	start();
+	for (int i=0; i<ops; i++)
+	    queue.waitForAccess(queue.nextThread());
+	return stop("cycle", n);
+    }
+
+    /**
+     * Time <i>ops</i> donations down a chain of <i>depth</i> transferring
+     * queues.
+     *
+     * @param	depth	the length of the donation chain.
+     * @return	the result.
+     */
+    public Result chain(int depth) {
+	ThreadQueue[] queues = new ThreadQueue[depth];
+	KThread[] holders = population(depth);
+	KThread donor = population(1)[0];
+
+	// holders[i] holds queues[i] and waits on queues[i-1]
+	for (int i=0; i<depth; i++) {
+	    queues[i] = scheduler.newThreadQueue(true);
+	    queues[i].acquire(holders[i]);
+	    if (i > 0)
+		queues[i-1].waitForAccess(holders[i]);
+	}
+	setPriority(donor, maxPriority());
+
+	ThreadQueue last = queues[depth-1];
+	KThread holder = holders[depth-1];
+
+	start();
+	for (int i=0; i<ops; i++) {
+	    last.waitForAccess(donor);
+	    Lib.assertTrue(last.nextThread() == donor);
+	    last.acquire(holder);
+	}
+	return stop("chain", depth);
+    }
+
+    /**
+     * Time <i>ops</i> moves of threads between eight queues holding <i>n</i>
+     * threads in total.
+     *
+     * @param	n	the number of threads.
+     * @return	the result.
+     */
+    public Result churn(int n) {
+	ThreadQueue[] queues = new ThreadQueue[8];
+	KThread[] threads = population(n);
+	Random random = new Random(n);
+
+	for (int i=0; i<queues.length; i++)
+	    queues[i] = scheduler.newThreadQueue(false);
+	for (int i=0; i<n; i++)
+	    queues[i % queues.length].waitForAccess(threads[i]);
+
+	int[] from = new int[ops];
+	int[] to = new int[ops];
+	for (int i=0; i<ops; i++) {
+	    from[i] = random.nextInt(queues.length);
+	    to[i] = random.nextInt(queues.length);
+	}
+
+	start();
+	for (int i=0; i<ops; i++) {
+	    KThread thread = queues[from[i]].nextThread();
+	    if (thread != null)
+		queues[to[i]].waitForAccess(thread);
+	}
+	return stop("churn", n);
+    }
+
+    /**
+     * The outcome of one timed workload.
+     */
+    public static class Result {
+	Result(String workload, int size, int ops, long nanos, long bytes) {
+	    this.workload = workload;
+	    this.size = size;
+	    this.opsPerSecond = ops * 1e9 / Math.max(1, nanos);
+	    this.bytesPerOp = (bytes < 0) ? -1 : (double) bytes / ops;
+	}
+
+	public String toString() {
+	    String alloc = (bytesPerOp < 0) ? "n/a"
+		: String.format("%.1f B/op", bytesPerOp);
+	    return String.format("%-6s %7d %14.0f ops/s %14s",
+				 workload, size, opsPerSecond, alloc);
+	}
+
+	public final String workload;
+	public final int size;
+	public final double opsPerSecond;
+	public final double bytesPerOp;
+    }
+
+    /**
+     * Run every workload at every configured size against every configured
+     * scheduler, and print the results.
+     */
+    public static void selfTest() {
+	String[] names =
+	    Config.getString("SchedulerBenchmark.schedulers",
+			     "nachos.threads.RoundRobinScheduler,"
+			     + "nachos.threads.PriorityScheduler,"
+			     + "nachos.threads.LotteryScheduler,"
+			     + "nachos.threads.StrideScheduler,"
+			     + "nachos.threads.MultilevelFeedbackScheduler,"
+			     + "nachos.threads.EarliestDeadlineScheduler").split(",");
+	int[] sizes = parseInts(Config.getString("SchedulerBenchmark.sizes",
+						 "10,100,1000,10000,100000"));
+	int[] depths = parseInts(Config.getString("SchedulerBenchmark.depths",
+						  "1,4,16,64"));
+	int ops = Config.getInteger("SchedulerBenchmark.ops", 200000);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int s=0; s<names.length; s++) {
+	    String name = names[s].trim();
+	    System.out.println("*** " + name);
+
+	    // warm up with a small run whose results are thrown away
+	    SchedulerBenchmark warmup =
+		new SchedulerBenchmark((Scheduler) Lib.constructObject(name),
+				       Math.min(ops, 20000));
+	    warmup.cycle(100);
+	    warmup.chain(4);
+	    warmup.churn(100);
+
+	    SchedulerBenchmark bench =
+		new SchedulerBenchmark((Scheduler) Lib.constructObject(name), ops);
+	    for (int i=0; i<sizes.length; i++)
+		System.out.println(bench.cycle(sizes[i]));
+	    for (int i=0; i<depths.length; i++)
+		System.out.println(bench.chain(depths[i]));
+	    for (int i=0; i<sizes.length; i++)
+		System.out.println(bench.churn(sizes[i]));
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static int[] parseInts(String list) {
+	String[] fields = list.split(",");
+	int[] values = new int[fields.length];
+	for (int i=0; i<fields.length; i++)
+	    values[i] = Integer.parseInt(fields[i].trim());
+	return values;
+    }
+
+    /**
+     * Create <i>n</i> unforked threads with a spread of priorities.
+     */
+    private KThread[] population(int n) {
+	KThread[] threads = new KThread[n];
+	for (int i=0; i<n; i++) {
+	    threads[i] = new KThread();
+	    setPriority(threads[i], (i % maxPriority()) + 1);
+	}
+	return threads;
+    }
+
+    private void setPriority(KThread thread, int priority) {
+	if (scheduler instanceof LotteryScheduler)
+	    scheduler.setPriority(thread, priority);
+	else if (scheduler instanceof PriorityScheduler)
+	    scheduler.setPriority(thread, Math.min(priority,
+						   PriorityScheduler.priorityMaximum));
+    }
+
+    private int maxPriority() {
+	return (scheduler instanceof LotteryScheduler) ? 10
+	    : PriorityScheduler.priorityMaximum;
+    }
+
+    private void start() {
+	// collect first, so the timed run starts from a quiet heap and is not
+	// charged for garbage left by setup
+	Runtime.getRuntime().gc();
+	startBytes = usedBytes();
+	startTime = System.nanoTime();
+    }
+
+    private Result stop(String workload, int size) {
+	long nanos = System.nanoTime() - startTime;
+	long bytes = usedBytes() - startBytes;
+
+	// a collection during the run shrank the heap
+	if (bytes < 0)
+	    bytes = -1;
+	else
+	    bytes = Math.max(0, bytes - noiseBytes);
+	return new Result(workload, size, ops, nanos, bytes);
+    }
+
+    /**
+     * Return the most the heap grows over a few timed runs that allocate
+     * one object each.
+     */
+    private static long calibrate() {
+	long most = 0;
+
+	for (int i=0; i<5; i++) {
+	    Runtime.getRuntime().gc();
+	    long before = usedBytes();
+	    sink = new Object();
+	    most = Math.max(most, usedBytes() - before);
+	}
+	return most;
+    }
+
+    /**
+     * Return the number of bytes of the heap in use.
+     */
+    private static long usedBytes() {
+	Runtime runtime = Runtime.getRuntime();
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private Scheduler scheduler;
+    private int ops;
+    private long startTime, startBytes;
+
+    /** The heap growth of a run that allocates almost nothing. */
+    private static long noiseBytes = -1;
+    private static Object sink;
+}
@@ -0,0 +1,210 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A record of recent scheduling decisions, and a histogram of how long
+ * threads wait on the ready queue.
+ *
+ * <p>
+ * Every enqueue, dispatch, priority donation, ticket transfer and change of
+ * priority by <tt>setPriority()</tt> is written
+ * into a fixed-size ring buffer, stamped with the simulated time from
+ * <tt>Machine.timer().getTime()</tt>. Once the buffer is full the oldest
+ * events are overwritten, so tracing can stay on for a whole run. Whenever a
+ * thread is dispatched, the time it spent on the ready queue is added to a
+ * histogram for that thread and to one for the whole kernel.
+ *
+ * <p>
+ * Tracing is switched on with the <tt>nachos.conf</tt> key
+ * <tt>SchedulerTrace.enabled</tt> or the <tt>'s'</tt> debug flag, and the
+ * buffer size is set by <tt>SchedulerTrace.size</tt>. Every call site is
+ * guarded by the constant <tt>enabled</tt>, so when tracing is off the JIT
+ * removes the instrumentation entirely.
+ */
+public class SchedulerTrace {
+    private static final char dbgTrace = 's';
+
+    /** <tt>true</tt> if scheduling events are being recorded. */
+    public static final boolean enabled =
+	Config.getBoolean("SchedulerTrace.enabled", false) || Lib.test(dbgTrace);
+
+    /** A thread was added to a thread queue. */
+    public static final int eventEnqueue = 0;
+    /** A thread queue chose a thread to receive access. */
+    public static final int eventDispatch = 1;
+    /** A thread's effective priority changed through donation. */
+    public static final int eventDonation = 2;
+    /** Tickets were transferred to or from a thread. */
+    public static final int eventTransfer = 3;
+    /** A thread's effective priority changed through its own priority. */
+    public static final int eventPriority = 4;
+
+    private static final String[] eventNames =
+	{ "enqueue", "dispatch", "donation", "transfer", "priority" };
+
+    private SchedulerTrace() {
+    }
+
+    /**
+     * Record a scheduling event. Callers check <tt>enabled</tt> first.
+     *
+     * @param	event	the kind of event.
+     * @param	thread	the thread the event concerns.
+     * @param	value	a value for the event: the new effective priority
+     *			for a donation or priority change, the change in
+     *			tickets for a transfer.
+     */
+    public static void record(int event, KThread thread, long value) {
+	int slot = (int) (next++ & (size - 1));
+
+	events[slot] = (byte) event;
+	threads[slot] = thread;
+	values[slot] = value;
+	times[slot] = Machine.timer().getTime();
+    }
+
+    /**
+     * Note that the specified thread has been put on the ready queue.
+     *
+     * @param	thread	the thread that is now ready.
+     */
+    public static void ready(KThread thread) {
+	stats(thread).readySince = Machine.timer().getTime();
+    }
+
+    /**
+     * Note that the specified thread is being given the processor, and add
+     * the time it spent on the ready queue to the wait histograms.
+     *
+     * @param	thread	the thread being dispatched.
+     */
+    public static void running(KThread thread) {
+	ThreadStats stats = stats(thread);
+
+	if (stats.readySince >= 0) {
+	    long wait = Machine.timer().getTime() - stats.readySince;
+	    stats.waits.add(wait);
+	    allWaits.add(wait);
+	    stats.readySince = -1;
+	}
+    }
+
+    /**
+     * Return the ready-queue wait histogram of the specified thread.
+     *
+     * @param	thread	the thread.
+     * @return	its histogram.
+     */
+    public static Histogram getWaitHistogram(KThread thread) {
+	return stats(thread).waits;
+    }
+
+    /**
+     * Return the ready-queue wait histogram of all threads together.
+     *
+     * @return	the kernel-wide histogram.
+     */
+    public static Histogram getWaitHistogram() {
+	return allWaits;
+    }
+
+    /**
+     * Print the recorded events, oldest first, followed by the kernel-wide
+     * wait histogram.
+     */
+    public static void print() {
+	long first = Math.max(0, next - size);
+
+	for (long i=first; i<next; i++) {
+	    int slot = (int) (i & (size - 1));
+	    System.out.println(times[slot] + "\t" + eventNames[events[slot]]
+			       + "\t" + threads[slot] + "\t" + values[slot]);
+	}
+
+	System.out.println("Ready queue wait times: " + allWaits);
+    }
+
+    /**
+     * A histogram of tick counts in power-of-two buckets. Bucket <i>i</i>
+     * counts values in [2<sup><i>i</i>-1</sup>, 2<sup><i>i</i></sup>), and
+     * bucket 0 counts zeros.
+     */
+    public static class Histogram {
+	/**
+	 * Add a value to this histogram.
+	 *
+	 * @param	ticks	the value, in ticks.
+	 */
+	public void add(long ticks) {
+	    buckets[64 - Long.numberOfLeadingZeros(Math.max(0, ticks))]++;
+	    count++;
+	    total += ticks;
+	    max = Math.max(max, ticks);
+	}
+
+	/**
+	 * Return the number of values in the specified bucket.
+	 *
+	 * @param	bucket	the bucket, from 0 to 64.
+	 * @return	the count.
+	 */
+	public long getBucket(int bucket) {
+	    return buckets[bucket];
+	}
+
+	public long getCount() {
+	    return count;
+	}
+
+	public long getMax() {
+	    return max;
+	}
+
+	public double getMean() {
+	    return (count == 0) ? 0.0 : (double) total / count;
+	}
+
+	public String toString() {
+	    StringBuffer buf = new StringBuffer();
+	    buf.append("count " + count + ", mean " + (long) getMean()
+		       + ", max " + max);
+
+	    for (int i=0; i<buckets.length; i++) {
+		if (buckets[i] != 0)
+		    buf.append(", <" + (1L << i) + ": " + buckets[i]);
+	    }
+	    return buf.toString();
+	}
+
+	private long[] buckets = new long[65];
+	private long count = 0, total = 0, max = 0;
+    }
+
+    /**
+     * Per-thread trace state, kept in <tt>KThread.traceStats</tt>.
+     */
+    static class ThreadStats {
+	long readySince = -1;
+	Histogram waits = new Histogram();
+    }
+
+    private static ThreadStats stats(KThread thread) {
+	if (thread.traceStats == null)
+	    thread.traceStats = new ThreadStats();
+
+	return thread.traceStats;
+    }
+
+    private static final int size =
+	Integer.highestOneBit(Math.max(1, Config.getInteger("SchedulerTrace.size",
+							    4096)));
+
+    private static byte[] events = new byte[enabled ? size : 0];
+    private static KThread[] threads = new KThread[enabled ? size : 0];
+    private static long[] values = new long[enabled ? size : 0];
+    private static long[] times = new long[enabled ? size : 0];
+    private static long next = 0;
+
+    private static Histogram allWaits = new Histogram();
+}
@@ -0,0 +1,142 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>selector</i> lets one thread wait on several communicators at once,
+ * until one of them has a speaker waiting, instead of blocking a thread in
+ * <tt>listen()</tt> on each.
+ *
+ * <p>
+ * A typical event loop looks like this:
+ *
+ * <p><blockquote><pre>
+ * Selector selector = new Selector(communicators);
+ * while (true) {
+ *     int i = selector.select();
+ *     int word = communicators[i].listen();
+ *     ...
+ * }
+ * </pre></blockquote>
+ *
+ * <p>
+ * A speaker stays blocked in <tt>speak()</tt> until it is paired with a
+ * listener, so once <tt>select()</tt> has returned a communicator,
+ * <tt>listen()</tt> on it returns at once unless some other listener took
+ * the speaker in between. A selector is meant to be used by one thread at a
+ * time.
+ */
+public class Selector {
+    /**
+     * Allocate a new selector over the specified communicators.
+     *
+     * @param	communicators	the communicators to wait on.
+     */
+    public Selector(Communicator[] communicators) {
+	Lib.assertTrue(communicators.length > 0);
+
+	this.communicators = communicators.clone();
+    }
+
+    /**
+     * Wait until one of the communicators has a speaker waiting. When
+     * several do, the one after the last returned is chosen, so no
+     * communicator is starved.
+     *
+     * @return	the index of a communicator with a waiting speaker.
+     */
+    public int select() {
+	return select(-1);
+    }
+
+    /**
+     * Wait until one of the communicators has a speaker waiting, or until
+     * <i>timeout</i> ticks have passed.
+     *
+     * @param	timeout	the most ticks to wait, or a negative number to wait
+     *			for as long as it takes.
+     * @return	the index of a communicator with a waiting speaker, or -1 if
+     *		the timeout passed first.
+     */
+    public int select(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ready = findReady();
+
+	if (ready < 0 && timeout != 0) {
+	    waiter = KThread.currentThread();
+	    timedOut = false;
+
+	    for (int i=0; i<communicators.length; i++)
+		communicators[i].addSelector(this);
+
+	    Alarm.Timeout timer = null;
+	    if (timeout > 0) {
+		timer = ThreadedKernel.alarm.schedule(timeout, new Runnable() {
+			public void run() {
+			    timedOut = true;
+			    wakeWaiter();
+			}
+		    });
+	    }
+
+	    while ((ready = findReady()) < 0 && !timedOut)
+		KThread.sleep();
+
+	    if (timer != null)
+		timer.cancel();
+
+	    for (int i=0; i<communicators.length; i++)
+		communicators[i].removeSelector(this);
+
+	    waiter = null;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return ready;
+    }
+
+    /**
+     * Called by a communicator when a speaker arrives. Interrupts are
+     * disabled.
+     */
+    void speakerArrived(Communicator communicator) {
+	wakeWaiter();
+    }
+
+    /**
+     * Wake the selecting thread if it is asleep.
+     */
+    private void wakeWaiter() {
+	if (waiter != null && asleep) {
+	    asleep = false;
+	    waiter.ready();
+	}
+    }
+
+    /**
+     * Return the index of a communicator with a waiting speaker, searching
+     * round-robin from the one after the last returned, or -1 if there is
+     * none. When there is none, marks the caller as about to sleep.
+     */
+    private int findReady() {
+	for (int i=1; i<=communicators.length; i++) {
+	    int index = (last + i) % communicators.length;
+	    if (communicators[index].hasSpeaker()) {
+		last = index;
+		return index;
+	    }
+	}
+
+	asleep = true;
+	return -1;
+    }
+
+    private Communicator[] communicators;
+    private int last = -1;
+
+    /** The thread in <tt>select()</tt>, or <tt>null</tt>. */
+    private KThread waiter = null;
+    private boolean asleep = false;
+    private boolean timedOut = false;
+}
@@ -0,0 +1,347 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that gives threads proportional shares deterministically, using
+ * stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and tickets are transferred through locks and joins in the
+ * same way (they add). Instead of holding a random lottery, each waiting
+ * thread has a <i>pass</i> value, and the thread with the smallest pass
+ * receives access next. Every time a thread receives access its pass advances
+ * by its <i>stride</i>, which is inversely proportional to its tickets. Over
+ * any interval each thread receives access in proportion to its tickets, with
+ * much lower variance than a lottery.
+ *
+ * <p>
+ * A thread that returns to the queue it last received access from keeps its
+ * pass. A thread arriving from elsewhere starts one stride after the queue's
+ * current pass, so it can neither monopolize the queue nor be starved by the
+ * threads already there.
+ */
+public class StrideScheduler extends LotteryScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param	transferPriority	<tt>true</tt> if this queue should
+	 *					transfer tickets from waiting threads
+	 *					to the owning thread.
+	 * @return	a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null) {
+			thread.schedulingState = new ThreadState(thread);
+		}
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * The stride of a thread holding a single ticket. A thread with
+	 * <i>n</i> tickets has a stride of <tt>stride1 / n</tt>. It is large
+	 * enough that strides stay proportional for donated ticket counts in
+	 * the billions; passes wrap around, and are only ever compared by
+	 * difference.
+	 */
+	public static final long stride1 = 1L << 62;
+
+	// The stride of a thread holding the given number of tickets
+	static long strideOf(long tickets) {
+		return Math.max(1, stride1 / Math.max(1, tickets));
+	}
+
+	/**
+	 * A queue that gives access to the waiting thread with the smallest pass.
+	 * Waiting threads are kept in an indexed min-heap, so every operation is
+	 * O(log n). Ties go to the thread that has waited longest. Each thread's
+	 * heap entry lives in its <tt>ThreadState</tt> and is reused every time
+	 * it waits, so waiting allocates nothing.
+	 */
+	protected class StrideQueue extends TicketQueue {
+		private Waiter[] heap;
+		private int size;
+
+		// the pass of the last thread to receive access
+		private long globalPass;
+		private long enqueueOrder;
+
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+			heap = new Waiter[initialCapacity];
+			size = 0;
+			globalPass = 0;
+			enqueueOrder = 0;
+		}
+
+		public void enqueueWaitingThread(LotteryScheduler.ThreadState state) {
+			ThreadState ts = (ThreadState) state;
+			Waiter w = ts.waiter;
+
+			// a thread waits on at most one queue at a time
+			Lib.assertTrue(w.queue == null);
+			long tickets = ts.getEffectiveTickets();
+			w.queue = this;
+			w.tickets = tickets;
+			w.stride = strideOf(tickets);
+			w.order = ++enqueueOrder;
+
+			// pick up where the thread left off, but never behind the queue;
+			// a thread leaves at most one stride ahead, so anything further
+			// is a pass the queue has since wrapped past
+			long ahead = ts.pass - globalPass;
+			if (ts.passQueue == this && ahead > 0 && ahead <= w.stride) {
+				w.pass = ts.pass;
+			} else {
+				w.pass = globalPass + w.stride;
+			}
+
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2);
+			}
+			w.index = size;
+			heap[size++] = w;
+			siftUp(w.index);
+			addTickets(tickets);
+		}
+
+		public void dequeueWaitingThread(LotteryScheduler.ThreadState ts) {
+			Waiter w = ((ThreadState) ts).waiter;
+			Lib.assertTrue(w.queue == this);
+			removeAt(w.index);
+			w.queue = null;
+			addTickets(-w.tickets);
+		}
+
+		public void updateWaitingThread(LotteryScheduler.ThreadState ts) {
+			Waiter w = ((ThreadState) ts).waiter;
+			Lib.assertTrue(w.queue == this);
+			long tickets = ts.getEffectiveTickets();
+
+			if (tickets == w.tickets) {
+				return;
+			}
+
+			// scale the distance still to travel by the new stride
+			long oldStride = w.stride;
+			long remaining = w.pass - globalPass;
+			long delta = tickets - w.tickets;
+			w.tickets = tickets;
+			w.stride = strideOf(tickets);
+			w.pass = globalPass + (long) ((double) remaining * w.stride / oldStride);
+
+			if (w.stride < oldStride) {
+				siftUp(w.index);
+			} else {
+				siftDown(w.index);
+			}
+			addTickets(delta);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size > 0) {
+				// charge the winner one stride before it leaves the queue
+				Waiter w = heap[0];
+				globalPass = w.pass;
+				w.state.passQueue = this;
+				w.state.pass = w.pass + w.stride;
+			}
+			return super.nextThread();
+		}
+
+		protected ThreadState pickNextThread() {
+			if (size == 0) {
+				return null;
+			}
+			return heap[0].state;
+		}
+
+		protected boolean isWaiting(LotteryScheduler.ThreadState ts) {
+			return ((ThreadState) ts).waiter.queue == this;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			System.out.println("Number of tickets = " + sum + "\tPass = " + globalPass);
+
+			for (int i = 0; i < size; i++) {
+				System.out.print(heap[i] + " ");
+			}
+			System.out.println();
+		}
+
+		public boolean empty() {
+			return size == 0;
+		}
+
+		private void removeAt(int i) {
+			Waiter last = heap[--size];
+			heap[size] = null;
+
+			if (i == size) {
+				return;
+			}
+			Waiter removed = heap[i];
+			last.index = i;
+			heap[i] = last;
+
+			if (last.compareTo(removed) < 0) {
+				siftUp(i);
+			} else {
+				siftDown(i);
+			}
+		}
+
+		private void siftUp(int i) {
+			Waiter w = heap[i];
+
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+
+				if (w.compareTo(heap[parent]) >= 0) {
+					break;
+				}
+				heap[parent].index = i;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			w.index = i;
+			heap[i] = w;
+		}
+
+		private void siftDown(int i) {
+			Waiter w = heap[i];
+			int half = size >>> 1;
+
+			while (i < half) {
+				int child = 2 * i + 1;
+				int right = child + 1;
+
+				if (right < size && heap[right].compareTo(heap[child]) < 0) {
+					child = right;
+				}
+
+				if (w.compareTo(heap[child]) <= 0) {
+					break;
+				}
+				heap[child].index = i;
+				heap[i] = heap[child];
+				i = child;
+			}
+			w.index = i;
+			heap[i] = w;
+		}
+	}
+
+	/**
+	 * A thread's entry in the <tt>StrideQueue</tt> it is waiting on, with the
+	 * tickets it was last counted with and its position in the heap.
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+		Waiter(ThreadState state) {
+			this.state = state;
+		}
+
+		// passes may wrap around, so compare by difference
+		public int compareTo(Waiter other) {
+			long diff = pass - other.pass;
+
+			if (diff != 0) {
+				return diff < 0 ? -1 : 1;
+			}
+			return Long.compare(order, other.order);
+		}
+
+		public String toString() {
+			return state.thread.toString();
+		}
+
+		ThreadState state;
+
+		// the queue this entry is waiting on, or null
+		StrideQueue queue = null;
+		long tickets;
+		long stride;
+		long pass;
+		long order;
+		int index;
+	}
+
+	public class ThreadState extends LotteryScheduler.ThreadState {
+		// the queue this thread last received access from, and the pass it
+		// resumes with if it waits there again
+		protected StrideQueue passQueue = null;
+		protected long pass = 0;
+
+		// this thread's heap entry, reused every time it waits
+		private Waiter waiter = new Waiter(this);
+
+		public ThreadState(KThread thread) {
+			super(thread);
+		}
+	}
+
+	/**
+	 * Test that access stays proportional to tickets when donations push
+	 * ticket counts past 2<sup>32</sup>.
+	 */
+	public static void selfTest() {
+		StrideScheduler scheduler = new StrideScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		// donors lift one holder to about 2^32 tickets and the other to
+		// about 3 * 2^32
+		KThread[] holders = { new KThread(), new KThread() };
+		int[] donors = { 2, 6 };
+		long[] tickets = new long[holders.length];
+
+		for (int i = 0; i < holders.length; i++) {
+			ThreadQueue lock = scheduler.newThreadQueue(true);
+			lock.acquire(holders[i]);
+			tickets[i] = scheduler.getPriority(holders[i]);
+
+			for (int j = 0; j < donors[i]; j++) {
+				KThread donor = new KThread();
+				scheduler.setPriority(donor, priorityMaximum);
+				lock.waitForAccess(donor);
+				tickets[i] += priorityMaximum;
+			}
+		}
+
+		ThreadQueue queue = scheduler.newThreadQueue(false);
+		for (int i = 0; i < holders.length; i++) {
+			queue.waitForAccess(holders[i]);
+		}
+
+		int rounds = 4000;
+		int[] runs = new int[holders.length];
+		for (int i = 0; i < rounds; i++) {
+			KThread thread = queue.nextThread();
+			runs[thread == holders[0] ? 0 : 1]++;
+			queue.waitForAccess(thread);
+		}
+
+		double expected = (double) rounds * tickets[1] / (tickets[0] + tickets[1]);
+		Lib.assertTrue(Math.abs(runs[1] - expected) <= 2);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static final int initialCapacity = 8;
+}
@@ -0,0 +1,435 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that simulates a multiprocessor: the ready queue is split into
+ * one local queue per simulated processor, and a processor whose queue is
+ * empty steals work from the busiest one.
+ *
+ * <p>
+ * The machine has a single real processor, so the simulated processors take
+ * turns: each dispatch from the ready queue is made on behalf of the next
+ * processor in rotation, and the thread it picks is said to run on that
+ * processor. A thread that becomes ready goes back on the queue of the
+ * processor it last ran on, so it tends to stay where its state is warm; a
+ * thread that has never run goes to the least loaded processor. Threads only
+ * move between processors when one runs out of work and steals.
+ *
+ * <p>
+ * A thread's affinity mask (<tt>KThread.setAffinity()</tt>) limits the
+ * processors it may run on, and its preferred processor
+ * (<tt>KThread.setPreferredProcessor()</tt>) is where it is placed whenever
+ * the mask allows. A thread whose mask leaves out any processor waits on a
+ * separate pinned queue of the processor it is placed on, which is never
+ * stolen from; a processor alternates between its two queues when both have
+ * work. Each time a thread is dispatched on a different processor than it
+ * last ran on counts as a migration.
+ *
+ * <p>
+ * The local queues, and every other thread queue, come from an underlying
+ * scheduler that decides the order within each queue and handles priorities
+ * and donation. Rules that the underlying scheduler applies only to its own
+ * ready queue (the feedback of <tt>MultilevelFeedbackScheduler</tt>, the
+ * budgets of <tt>EarliestDeadlineScheduler</tt>) do not apply to the local
+ * queues.
+ *
+ * <p>
+ * Because the simulated processors never truly run at the same time,
+ * disabling interrupts still excludes every other processor, and serves as
+ * the kernel lock.
+ *
+ * <p>
+ * The number of processors and the underlying scheduler are read from the
+ * <tt>nachos.conf</tt> keys <tt>WorkStealingScheduler.processors</tt> and
+ * <tt>WorkStealingScheduler.scheduler</tt>.
+ */
+public class WorkStealingScheduler extends Scheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	this(Config.getInteger("WorkStealingScheduler.processors", 4),
+	     (Scheduler) Lib.constructObject(
+		Config.getString("WorkStealingScheduler.scheduler",
+				 "nachos.threads.RoundRobinScheduler")));
+    }
+
+    /**
+     * Allocate a new work-stealing scheduler.
+     *
+     * @param	processors	the number of simulated processors.
+     * @param	scheduler	the scheduler that orders each queue.
+     */
+    public WorkStealingScheduler(int processors, Scheduler scheduler) {
+	Lib.assertTrue(processors > 0 && processors <= maxProcessors
+		       && scheduler != null);
+
+	this.processors = processors;
+	this.scheduler = scheduler;
+
+	allProcessors = (processors == maxProcessors) ? -1L
+	    : (1L << processors) - 1;
+
+	load = new int[processors];
+	movable = new int[processors];
+	servePinned = new boolean[processors];
+	migrations = new long[processors];
+	dispatches = new long[processors];
+	steals = new long[processors];
+	idle = new long[processors];
+    }
+
+    /**
+     * Allocate a new thread queue. Queues that transfer priority belong
+     * entirely to the underlying scheduler. The others act as a plain queue
+     * of the underlying scheduler unless they are the ready queue, in which
+     * case they keep one local queue per processor.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	if (transferPriority)
+	    return scheduler.newThreadQueue(true);
+
+	return new ProcessorQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	return scheduler.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return scheduler.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	scheduler.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return scheduler.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return scheduler.decreasePriority();
+    }
+
+    /**
+     * Return the number of simulated processors.
+     *
+     * @return	the number of processors.
+     */
+    public int getProcessorCount() {
+	return processors;
+    }
+
+    /**
+     * Return the processor the current thread is running on.
+     *
+     * @return	the current processor.
+     */
+    public int getCurrentProcessor() {
+	return current;
+    }
+
+    /**
+     * Return the number of threads waiting on a processor's local queue.
+     *
+     * @param	processor	the processor.
+     * @return	its load.
+     */
+    public int getLoad(int processor) {
+	return load[processor];
+    }
+
+    /**
+     * Return the number of threads a processor has been given to run,
+     * including stolen ones.
+     *
+     * @param	processor	the processor.
+     * @return	its number of dispatches.
+     */
+    public long getDispatches(int processor) {
+	return dispatches[processor];
+    }
+
+    /**
+     * Return the number of threads a processor has stolen from another
+     * processor's queue.
+     *
+     * @param	processor	the processor.
+     * @return	its number of steals.
+     */
+    public long getSteals(int processor) {
+	return steals[processor];
+    }
+
+    /**
+     * Return the number of threads a processor has run that last ran on a
+     * different processor.
+     *
+     * @param	processor	the processor.
+     * @return	its number of migrations in.
+     */
+    public long getMigrations(int processor) {
+	return migrations[processor];
+    }
+
+    /**
+     * Return the number of migrations on all processors together.
+     *
+     * @return	the total number of migrations.
+     */
+    public long getMigrations() {
+	long total = 0;
+	for (int i=0; i<processors; i++)
+	    total += migrations[i];
+	return total;
+    }
+
+    /**
+     * Return the number of turns a processor found no thread to run, even
+     * by stealing.
+     *
+     * @param	processor	the processor.
+     * @return	its number of idle turns.
+     */
+    public long getIdleTurns(int processor) {
+	return idle[processor];
+    }
+
+    /**
+     * Print the load and counters of every processor.
+     */
+    public void printLoad() {
+	for (int i=0; i<processors; i++) {
+	    System.out.println("cpu " + i + ": load " + load[i]
+			       + ", dispatches " + dispatches[i]
+			       + ", steals " + steals[i]
+			       + ", migrations " + migrations[i]
+			       + ", idle " + idle[i]);
+	}
+    }
+
+    private class ProcessorQueue extends ThreadQueue {
+	ProcessorQueue() {
+	    shared = scheduler.newThreadQueue(false);
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!isReadyQueue()) {
+		shared.waitForAccess(thread);
+		return;
+	    }
+
+	    long mask = thread.getAffinity() & allProcessors;
+	    if (mask == 0)
+		Lib.assertNotReached("affinity mask of " + thread + " names none"
+				     + " of the " + processors + " processors");
+
+	    int processor = place(thread, mask);
+	    initLocal();
+
+	    if (mask == allProcessors) {
+		local[processor].waitForAccess(thread);
+		movable[processor]++;
+	    }
+	    else {
+		pinned[processor].waitForAccess(thread);
+	    }
+	    load[processor]++;
+	}
+
+	/**
+	 * On the ready queue, pick a thread for the next processor in
+	 * rotation: from its own queues if they have work, otherwise from the
+	 * local queue of the processor with the most threads that may move.
+	 * Returns <tt>null</tt> only if no processor has anything to run.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (!isReadyQueue())
+		return shared.nextThread();
+
+	    initLocal();
+
+	    int from = current;
+	    KThread thread = null;
+
+	    // a processor with nothing it may run sits this turn out
+	    for (int i=0; i<processors && thread == null; i++) {
+		current = (current + 1) % processors;
+
+		from = current;
+		thread = takeOwn(current);
+
+		if (thread == null) {
+		    from = mostMovable();
+		    if (movable[from] > 0) {
+			thread = local[from].nextThread();
+			movable[from]--;
+			steals[current]++;
+		    }
+		}
+
+		if (thread == null)
+		    idle[current]++;
+	    }
+
+	    if (thread == null)
+		return null;
+
+	    load[from]--;
+	    dispatches[current]++;
+	    if (thread.processor >= 0 && thread.processor != current)
+		migrations[current]++;
+	    thread.processor = current;
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (local == null)
+		shared.acquire(thread);
+	}
+
+	public boolean contains(KThread thread) {
+	    if (local == null)
+		return shared.contains(thread);
+
+	    for (int i=0; i<processors; i++) {
+		if (local[i].contains(thread) || pinned[i].contains(thread))
+		    return true;
+	    }
+	    return false;
+	}
+
+	public boolean empty() {
+	    if (local == null)
+		return shared.empty();
+
+	    for (int i=0; i<processors; i++) {
+		if (load[i] > 0)
+		    return false;
+	    }
+	    return true;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (local == null) {
+		shared.print();
+		return;
+	    }
+
+	    for (int i=0; i<processors; i++) {
+		System.out.print("[cpu " + i + ": ");
+		local[i].print();
+		System.out.print("| ");
+		pinned[i].print();
+		System.out.print("] ");
+	    }
+	}
+
+	private boolean isReadyQueue() {
+	    return this == KThread.readyQueue();
+	}
+
+	/**
+	 * Create the per-processor queues the first time this queue is used
+	 * as the ready queue.
+	 */
+	private void initLocal() {
+	    if (local == null) {
+		Lib.assertTrue(shared.empty());
+
+		local = new ThreadQueue[processors];
+		pinned = new ThreadQueue[processors];
+		for (int i=0; i<processors; i++) {
+		    local[i] = scheduler.newThreadQueue(false);
+		    pinned[i] = scheduler.newThreadQueue(false);
+		}
+	    }
+	}
+
+	/**
+	 * Take the next thread from a processor's own queues, alternating
+	 * between them while both have work.
+	 */
+	private KThread takeOwn(int processor) {
+	    boolean pinnedFirst = servePinned[processor];
+	    servePinned[processor] = !pinnedFirst;
+
+	    ThreadQueue first = pinnedFirst ? pinned[processor] : local[processor];
+	    ThreadQueue second = pinnedFirst ? local[processor] : pinned[processor];
+
+	    KThread thread = first.nextThread();
+	    if (thread == null) {
+		thread = second.nextThread();
+		pinnedFirst = !pinnedFirst;
+	    }
+
+	    if (thread != null && !pinnedFirst)
+		movable[processor]--;
+
+	    return thread;
+	}
+
+	private ThreadQueue shared;
+	private ThreadQueue[] local = null;
+	private ThreadQueue[] pinned = null;
+    }
+
+    /**
+     * Choose the processor a ready thread should wait on: its preferred
+     * processor, then the one it last ran on, then the least loaded, each
+     * only if the mask allows it.
+     */
+    private int place(KThread thread, long mask) {
+	int preferred = thread.getPreferredProcessor();
+	if (preferred >= 0 && preferred < processors
+	    && (mask & (1L << preferred)) != 0)
+	    return preferred;
+
+	if (thread.processor >= 0 && (mask & (1L << thread.processor)) != 0)
+	    return thread.processor;
+
+	int best = -1;
+	for (int i=0; i<processors; i++) {
+	    if ((mask & (1L << i)) != 0 && (best < 0 || load[i] < load[best]))
+		best = i;
+	}
+	return best;
+    }
+
+    private int mostMovable() {
+	int best = current;
+	for (int i=0; i<processors; i++) {
+	    if (movable[i] > movable[best])
+		best = i;
+	}
+	return best;
+    }
+
+    /** The most processors an affinity mask can name. */
+    public static final int maxProcessors = 64;
+
+    private Scheduler scheduler;
+    private int processors;
+    private int current = 0;
+
+    private long allProcessors;
+
+    private int[] load, movable;
+    private boolean[] servePinned;
+    private long[] dispatches, steals, migrations, idle;
+}